@@ -1,24 +1,60 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.InputMismatchException;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
 
 class Book {
+    private static final AtomicIntegerFieldUpdater<Book> BORROWER =
+            AtomicIntegerFieldUpdater.newUpdater(Book.class, "borrowerId");
+
     private int id;
     private String title;
     private String author;
     private String genre;
-    private boolean available;
     private LocalDate dueDate;
+    // Id of the patron who has the book out, or 0. Only changed by
+    // compare-and-set, so two desks can never both lend the copy.
+    private volatile int borrowerId;
+    // Last epoch day the current loan has been fined for.
+    private long finedThrough;
 
     public Book(int id, String title, String author, String genre) {
         this.id = id;
         this.title = title;
         this.author = author;
         this.genre = genre;
-        this.available = true;
         this.dueDate = null;
     }
 
@@ -26,12 +62,29 @@ class Book {
         return dueDate;
     }
 
-    public void setDueDate(LocalDate dueDate) {
+    public synchronized void setDueDate(LocalDate dueDate) {
         this.dueDate = dueDate;
+        this.finedThrough = dueDate == null ? 0 : dueDate.toEpochDay();
+    }
+
+    // Marks the loan fined through the given day and returns how many new
+    // overdue days that covers, so each day is charged exactly once.
+    public synchronized long fineThrough(long epochDay) {
+        if (dueDate == null || epochDay <= finedThrough) {
+            return 0;
+        }
+        long days = epochDay - finedThrough;
+        finedThrough = epochDay;
+        return days;
+    }
+
+    // Id of the patron who has the book out, or 0.
+    public int getBorrowerId() {
+        return borrowerId;
     }
 
     public boolean isAvailable() {
-        return available;
+        return borrowerId == 0;
     }
 
     public String getTitle() {
@@ -46,43 +99,40 @@ class Book {
         return author;
     }
 
-    public void borrow() {
-        if (available) {
-            available = false;
-        } else {
-            System.out.println("This book is already borrowed.");
-        }
+    public String getGenre() {
+        return genre;
     }
 
-    public void returnBook() {
-        if (!available) {
-            available = true;
-        } else {
-            System.out.println("This book is already available.");
-        }
+    // Lends the book to the patron if nobody has it out.
+    boolean tryBorrow(int patronId) {
+        return BORROWER.compareAndSet(this, 0, patronId);
+    }
+
+    // Takes the book back if this patron has it out.
+    boolean release(int patronId) {
+        return BORROWER.compareAndSet(this, patronId, 0);
     }
 
     public String toString() {
         return "Book ID: " + id + "\nTitle: " + title + "\nAuthor: " + author + "\nGenre: " + genre + "\nAvailable: "
-                + available;
+                + isAvailable();
     }
 
-    public boolean containsKeyword(String keyword) {
-        return title.toLowerCase().contains(keyword.toLowerCase());
-    }
 }
 
 class Patron {
     private int id;
     private String name;
     private String contactInfo;
-    private List<Book> borrowedBooks;
+    // Books currently out, keyed by book id. Guarded by this patron's lock.
+    private IntMap<Book> loans;
+    private final AtomicLong finesOwed = new AtomicLong();
 
     public Patron(int id, String name, String contactInfo) {
         this.id = id;
         this.name = name;
         this.contactInfo = contactInfo;
-        this.borrowedBooks = new ArrayList<>();
+        this.loans = new IntMap<>();
     }
 
     public int getId() {
@@ -93,130 +143,1495 @@ class Patron {
         return name;
     }
 
-    public void borrowBook(Book book) {
-        if (book.isAvailable()) {
-            book.borrow();
-            borrowedBooks.add(book);
-            System.out.println(name + " has borrowed " + book.getTitle());
+    // Called by Catalog with this patron's lock held.
+    void addLoan(Book book) {
+        loans.put(book.getId(), book);
+    }
+
+    void removeLoan(Book book) {
+        loans.remove(book.getId());
+    }
+
+    public synchronized List<Book> getBorrowedBooks() {
+        return loans.values();
+    }
+
+    // In cents.
+    public long getFinesOwed() {
+        return finesOwed.get();
+    }
+
+    void addFine(long cents) {
+        finesOwed.addAndGet(cents);
+    }
+
+    public synchronized String toString() {
+        return "Patron ID: " + id + "\nName: " + name + "\nContact Info: " + contactInfo + "\nBorrowed Books: "
+                + loans.size() + "\nFines Owed: $" + FineLedger.format(finesOwed.get());
+    }
+}
+
+// Open-addressing hash map from positive int keys to objects, without
+// boxing the keys. Linear probing with backward-shift deletion, so there
+// are no tombstones and lookups stay short after removals.
+class IntMap<V> {
+    private int[] keys = new int[16];
+    private Object[] values = new Object[16];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("Keys must be positive: " + key);
+        }
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > keys.length * 3 / 4) {
+            resize();
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != key) {
+            if (keys[slot] == 0) {
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+        V removed = (V) values[slot];
+        // Pull back later entries of the probe run that would otherwise
+        // become unreachable through the hole.
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = slot(keys[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        size--;
+        return removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept((V) values[i]);
+            }
+        }
+    }
+
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEachValue(values::add);
+        return values;
+    }
+
+    private static int slot(int key, int mask) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i], mask);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
+
+// Normalization shared by the search indexes, so lookups ignore case and spacing.
+class Text {
+
+    // Lower-cased, trimmed, with runs of whitespace collapsed to one space.
+    static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+            } else {
+                if (space) {
+                    normalized.append(' ');
+                    space = false;
+                }
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+
+    // Lower-cased runs of letters and digits.
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+}
+
+// Sorted book ids stored as varint-encoded gaps. Every SKIP_INTERVAL-th id
+// is also kept uncompressed with its byte offset, so a lookup can jump
+// straight to the right block instead of decoding the list from the start.
+class PostingList {
+    private static final int SKIP_INTERVAL = 64;
+
+    private byte[] data = new byte[4];
+    private int length;
+    private int size;
+    private int last;
+    private int[] skipIds = new int[1];
+    private int[] skipOffsets = new int[1];
+
+    public int size() {
+        return size;
+    }
+
+    // Ids must arrive in increasing order; repeating the last id is a no-op.
+    public void add(int id) {
+        if (size > 0 && id <= last) {
+            if (id == last) {
+                return;
+            }
+            throw new IllegalArgumentException("Book ids must be added in increasing order");
+        }
+        if (size % SKIP_INTERVAL == 0) {
+            int block = size / SKIP_INTERVAL;
+            if (block == skipIds.length) {
+                skipIds = Arrays.copyOf(skipIds, block * 2);
+                skipOffsets = Arrays.copyOf(skipOffsets, block * 2);
+            }
+            skipIds[block] = id;
+            skipOffsets[block] = length;
+        }
+        if (length + 5 > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+        }
+        int gap = size == 0 ? id : id - last;
+        while ((gap & ~0x7F) != 0) {
+            data[length++] = (byte) ((gap & 0x7F) | 0x80);
+            gap >>>= 7;
+        }
+        data[length++] = (byte) gap;
+        last = id;
+        size++;
+    }
+
+    public int[] toArray() {
+        int[] ids = new int[size];
+        int offset = 0;
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += gap;
+            ids[i] = value;
+        }
+        return ids;
+    }
+
+    // Keeps the first count candidates (sorted ascending) that are also in
+    // this list, compacting them to the front; returns how many were kept.
+    public int retainAll(int[] candidates, int count) {
+        int kept = 0;
+        int offset = 0;
+        int index = 0;
+        int value = 0;
+        for (int c = 0; c < count; c++) {
+            int target = candidates[c];
+            if (index == 0 || value < target) {
+                // Jump only when target lies beyond the next block's first id;
+                // otherwise decoding on from the cursor is cheaper.
+                int next = index == 0 ? 0 : (index - 1) / SKIP_INTERVAL + 1;
+                if (next < blocks() && skipIds[next] <= target) {
+                    int block = blockFor(target, next);
+                    // The block's first id is stored in full, so its gap is skipped.
+                    offset = skipOffsets[block];
+                    while (data[offset] < 0) {
+                        offset++;
+                    }
+                    offset++;
+                    value = skipIds[block];
+                    index = block * SKIP_INTERVAL + 1;
+                } else if (index == 0) {
+                    continue;
+                }
+                while (value < target && index < size) {
+                    int gap = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[offset++];
+                        gap |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    value += gap;
+                    index++;
+                }
+            }
+            if (value == target) {
+                candidates[kept++] = target;
+            }
+        }
+        return kept;
+    }
+
+    private int blocks() {
+        return (size + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+    }
+
+    // Last block from low on whose first id is <= target; skipIds[low] must be <= target.
+    private int blockFor(int target, int low) {
+        int high = blocks() - 1;
+        int found = low;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (skipIds[mid] <= target) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+}
+
+// Inverted index from the words of each book's title, author and genre to
+// the ids of the books containing them. Words are lower-cased runs of
+// letters and digits. Books must be added in increasing id order.
+class BookIndex {
+    private final Map<String, PostingList> postings = new HashMap<>();
+    // Authors and genres repeat across many books, so each distinct value
+    // is split into words and its posting lists looked up only once.
+    private final Map<String, PostingList[]> fieldLists = new HashMap<>();
+
+    public void add(Book book) {
+        addWords(book.getId(), book.getTitle());
+        addField(book.getId(), book.getAuthor());
+        addField(book.getId(), book.getGenre());
+    }
+
+    private void addWords(int id, String text) {
+        for (String word : Text.words(text)) {
+            postings.computeIfAbsent(word, w -> new PostingList()).add(id);
+        }
+    }
+
+    private void addField(int id, String text) {
+        PostingList[] lists = fieldLists.get(text);
+        if (lists == null) {
+            List<String> words = Text.words(text);
+            lists = new PostingList[words.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = postings.computeIfAbsent(words.get(i), w -> new PostingList());
+            }
+            fieldLists.put(text, lists);
+        }
+        for (PostingList list : lists) {
+            list.add(id);
+        }
+    }
+
+    // Ids of the books containing every word of the query, in increasing order.
+    // Starts from the shortest posting list and intersects the rest into it.
+    public int[] search(String query) {
+        List<String> terms = Text.words(query);
+        if (terms.isEmpty()) {
+            return new int[0];
+        }
+        PostingList[] lists = new PostingList[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(terms.get(i));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+        int[] ids = lists[0].toArray();
+        int count = ids.length;
+        for (int i = 1; i < lists.length && count > 0; i++) {
+            count = lists[i].retainAll(ids, count);
+        }
+        return Arrays.copyOf(ids, count);
+    }
+}
+
+// Trie over normalized patron names (lower-cased, with runs of spaces
+// collapsed), held in parallel arrays instead of node objects. Children are
+// chained in character order, so a prefix walk visits names alphabetically
+// and can stop after the first few matches. Lookups cost time proportional
+// to the query, not the number of patrons. Patrons sharing a name are kept
+// on the same node in the order they were added.
+class PatronNameIndex {
+    private char[] labels = new char[64];
+    private int[] parent = new int[64];
+    private int[] firstChild = new int[64];
+    private int[] nextSibling = new int[64];
+    private int[] firstEntry = new int[64];
+    private int[] lastEntry = new int[64];
+    private int nodes = 1;
+
+    // Entries are numbered from 1 so that 0 can mean "none".
+    private int[] entryPatron = new int[16];
+    private int[] entryNext = new int[16];
+    private int entries = 1;
+
+    public void add(Patron patron) {
+        String name = Text.normalize(patron.getName());
+        int node = 0;
+        for (int i = 0; i < name.length(); i++) {
+            node = child(node, name.charAt(i));
+        }
+        if (entries == entryPatron.length) {
+            entryPatron = Arrays.copyOf(entryPatron, entries * 2);
+            entryNext = Arrays.copyOf(entryNext, entries * 2);
+        }
+        int entry = entries++;
+        entryPatron[entry] = patron.getId();
+        if (firstEntry[node] == 0) {
+            firstEntry[node] = entry;
         } else {
-            System.out.println(book.getTitle() + " is not available for borrowing.");
+            entryNext[lastEntry[node]] = entry;
+        }
+        lastEntry[node] = entry;
+    }
+
+    // Ids of every patron with exactly this name, ignoring case and spacing.
+    public int[] find(String name) {
+        int node = walk(Text.normalize(name));
+        int[] ids = new int[0];
+        if (node < 0) {
+            return ids;
+        }
+        int count = 0;
+        for (int entry = firstEntry[node]; entry != 0; entry = entryNext[entry]) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(4, count * 2));
+            }
+            ids[count++] = entryPatron[entry];
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    // Ids of up to limit patrons whose name starts with prefix, in name order.
+    public int[] complete(String prefix, int limit) {
+        int start = walk(Text.normalize(prefix));
+        if (start < 0) {
+            return new int[0];
+        }
+        int[] ids = new int[Math.min(limit, 64)];
+        int count = 0;
+        int node = start;
+        while (count < limit) {
+            for (int entry = firstEntry[node]; entry != 0 && count < limit; entry = entryNext[entry]) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, Math.min(limit, count * 2));
+                }
+                ids[count++] = entryPatron[entry];
+            }
+            // Pre-order step: down to the first child, else across to the next
+            // sibling of the nearest ancestor that has one.
+            if (firstChild[node] != 0) {
+                node = firstChild[node];
+                continue;
+            }
+            while (node != start && nextSibling[node] == 0) {
+                node = parent[node];
+            }
+            if (node == start) {
+                break;
+            }
+            node = nextSibling[node];
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    private int walk(String key) {
+        int node = 0;
+        for (int i = 0; i < key.length() && node >= 0; i++) {
+            char c = key.charAt(i);
+            int child = firstChild[node];
+            while (child != 0 && labels[child] < c) {
+                child = nextSibling[child];
+            }
+            node = child != 0 && labels[child] == c ? child : -1;
         }
+        return node;
     }
 
-    public void returnBook(Book book) {
-        if (borrowedBooks.contains(book)) {
-            book.returnBook();
-            borrowedBooks.remove(book);
-            System.out.println(name + " has returned " + book.getTitle());
+    private int child(int node, char c) {
+        int previous = 0;
+        int child = firstChild[node];
+        while (child != 0 && labels[child] < c) {
+            previous = child;
+            child = nextSibling[child];
+        }
+        if (child != 0 && labels[child] == c) {
+            return child;
+        }
+        if (nodes == labels.length) {
+            int capacity = nodes * 2;
+            labels = Arrays.copyOf(labels, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            firstEntry = Arrays.copyOf(firstEntry, capacity);
+            lastEntry = Arrays.copyOf(lastEntry, capacity);
+        }
+        int created = nodes++;
+        labels[created] = c;
+        parent[created] = node;
+        nextSibling[created] = child;
+        if (previous == 0) {
+            firstChild[node] = created;
         } else {
-            System.out.println(name + " did not borrow " + book.getTitle());
+            nextSibling[previous] = created;
         }
+        return created;
     }
+}
+
+// Books on loan bucketed by due date (epoch day), so the loans due before a
+// given day are found by walking only the buckets before it.
+class DueDateIndex {
+    // (due epoch day << 32) | book id, so keys sort by due date and each
+    // loan is one entry. The skip list lets desks add and remove loans
+    // concurrently without a shared lock.
+    private final ConcurrentSkipListSet<Long> loans = new ConcurrentSkipListSet<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final IntMap<Book> books;
 
-    public List<Book> getBorrowedBooks() {
-        return borrowedBooks;
+    public DueDateIndex(IntMap<Book> books) {
+        this.books = books;
     }
 
-    public String toString() {
-        return "Patron ID: " + id + "\nName: " + name + "\nContact Info: " + contactInfo + "\nBorrowed Books: "
-                + borrowedBooks.size();
+    public void add(Book book) {
+        if (loans.add(key(book))) {
+            size.incrementAndGet();
+        }
+    }
+
+    public void remove(Book book) {
+        if (loans.remove(key(book))) {
+            size.decrementAndGet();
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    // Visits books whose due date is before asOf, earliest due first.
+    public void forEachOverdue(LocalDate asOf, Consumer<Book> action) {
+        for (long key : loans.headSet(asOf.toEpochDay() << 32)) {
+            action.accept(books.get((int) key));
+        }
+    }
+
+    private static long key(Book book) {
+        return book.getDueDate().toEpochDay() << 32 | book.getId();
+    }
+}
+
+// Running fine balances. Once a day the accrual pass charges every overdue
+// loan for the days since it was last charged, spread over the common
+// fork-join pool; returning a book charges its remaining days. Each
+// patron's balance and the library total are kept as they change, so
+// reading them is O(1).
+class FineLedger {
+    static final long FINE_PER_DAY_CENTS = 50;
+
+    private final Catalog catalog;
+    private final LongAdder totalOwed = new LongAdder();
+    private long lastAccrualDay = Long.MIN_VALUE;
+
+    public FineLedger(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    // Runs at most once per day; returns how many overdue loans were visited.
+    public synchronized int accrue(LocalDate today) {
+        long day = today.toEpochDay();
+        if (day <= lastAccrualDay) {
+            return 0;
+        }
+        List<Book> overdue = new ArrayList<>();
+        catalog.forEachOverdue(today, overdue::add);
+        overdue.parallelStream().forEach(book -> charge(book, day));
+        lastAccrualDay = day;
+        return overdue.size();
+    }
+
+    // Charges a loan that is being returned up to today.
+    public void settle(Book book, LocalDate today) {
+        charge(book, today.toEpochDay());
+    }
+
+    private void charge(Book book, long day) {
+        // Read the borrower first: a return closes the loan before it
+        // releases the book, so if the loan is gone by now nothing is due.
+        int borrowerId = book.getBorrowerId();
+        long days = book.fineThrough(day);
+        if (days > 0 && borrowerId != 0) {
+            long fine = days * FINE_PER_DAY_CENTS;
+            catalog.findPatron(borrowerId).addFine(fine);
+            totalOwed.add(fine);
+        }
+    }
+
+    // In cents.
+    public long getTotalOwed() {
+        return totalOwed.sum();
+    }
+
+    static String format(long cents) {
+        return cents / 100 + "." + (cents % 100 < 10 ? "0" : "") + cents % 100;
+    }
+}
+
+// Append-only log of every borrow and return, one fixed 20-byte record
+// each: run, patron id, book id, epoch day, event type. The catalog is not
+// saved, so book and patron ids only mean something within the run that
+// logged them; the header counts runs, each open starts a new one, and
+// reports and rollups cover the current run only. Earlier runs stay in the
+// file, tagged with their run, for offline analysis. Reports stream the
+// file back in large blocks, so the log can grow far past what fits in
+// memory.
+//
+// Appends take no lock and do no I/O: each claims the next slot of a ring
+// with one atomic increment, fills it and marks it published. A single
+// writer thread drains published slots in order, writes them and forces
+// the file once per batch, so one fsync commits every event that arrived
+// while the previous one ran. flush waits for that writer to catch up.
+class LoanEventLog implements Closeable {
+    static final int MAGIC = 0x4C455631; // "LEV1"
+    static final int HEADER_BYTES = 8;
+    static final int RECORD_BYTES = 20;
+    static final int BORROW = 1;
+    static final int RETURN = 2;
+    private static final int BUFFER_RECORDS = 4096;
+    private static final int SCAN_RECORDS = 65536;
+    private static final int RING_RECORDS = 1 << 16;
+    private static final int RECORD_INTS = 4;
+    private static final long IDLE_NANOS = 1_000_000;
+    private static final long FULL_RING_NANOS = 10_000;
+
+    interface Visitor {
+        void visit(int patronId, int bookId, int epochDay, int type);
+    }
+
+    private final FileChannel channel;
+    private final int run;
+    // Where this run's records start.
+    private final long runStart;
+
+    // Patron id, book id, epoch day and type of each slot; slot i holds
+    // event n when published[i] is n + 1.
+    private final int[] ring = new int[RING_RECORDS * RECORD_INTS];
+    private final AtomicLongArray published = new AtomicLongArray(RING_RECORDS);
+    private final AtomicLong claimed = new AtomicLong();
+    // Events copied out of the ring by the writer; their slots may be reused.
+    private volatile long drained;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Guarded by this: how far the file is durable, and the rollup of what is.
+    private long written;
+    private long durable;
+    private IOException failure;
+    // Borrows in this run, indexed by book id.
+    private int[] borrowCounts = new int[1024];
+
+    public LoanEventLog(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            long size = channel.size();
+            if (size == 0) {
+                run = 1;
+            } else {
+                while (header.hasRemaining()) {
+                    if (channel.read(header, header.position()) < 0) {
+                        break;
+                    }
+                }
+                header.flip();
+                if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                    throw new IOException(path + " is not a loan event log");
+                }
+                run = header.getInt() + 1;
+            }
+            header.clear();
+            header.putInt(MAGIC).putInt(run).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            // Drop a record torn by a crash mid-write
+            written = Math.max(HEADER_BYTES, size - (size - HEADER_BYTES) % RECORD_BYTES);
+            channel.truncate(written);
+            channel.force(false);
+            runStart = written;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        writer = new Thread(this::writeLoop, "loan-event-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public int getRun() {
+        return run;
+    }
+
+    // Safe to call from many threads, including under a patron's lock: the
+    // order slots are claimed in is the order events reach the file. Only
+    // waits if the writer has fallen a whole ring behind.
+    public void append(int patronId, int bookId, LocalDate day, int type) {
+        long event = claimed.getAndIncrement();
+        while (event - drained >= RING_RECORDS) {
+            if (closed) {
+                throw new IllegalStateException("Loan event log is closed");
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(this, FULL_RING_NANOS);
+        }
+        int slot = (int) event & (RING_RECORDS - 1);
+        int i = slot * RECORD_INTS;
+        ring[i] = patronId;
+        ring[i + 1] = bookId;
+        ring[i + 2] = (int) day.toEpochDay();
+        ring[i + 3] = type;
+        published.set(slot, event + 1);
+    }
+
+    // Waits until every event appended before the call is on disk, so a
+    // flushed event survives a crash.
+    public void flush() {
+        long target = claimed.get();
+        LockSupport.unpark(writer);
+        synchronized (this) {
+            boolean interrupted = false;
+            while (durable < target && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+    }
+
+    // Copies published events into the buffer in claim order and writes
+    // them; forces the file when it has caught up with the appenders or a
+    // ring's worth is unforced, then wakes whoever is flushing.
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES);
+        long position;
+        synchronized (this) {
+            position = written;
+        }
+        long next = 0;
+        long forced = 0;
+        try {
+            while (true) {
+                long batchStart = next;
+                synchronized (this) {
+                    while (buffer.hasRemaining() && published.get((int) next & (RING_RECORDS - 1)) == next + 1) {
+                        int i = ((int) next & (RING_RECORDS - 1)) * RECORD_INTS;
+                        buffer.putInt(run).putInt(ring[i]).putInt(ring[i + 1]).putInt(ring[i + 2]).putInt(ring[i + 3]);
+                        if (ring[i + 3] == BORROW) {
+                            int bookId = ring[i + 1];
+                            if (bookId >= borrowCounts.length) {
+                                borrowCounts = Arrays.copyOf(borrowCounts, Math.max(bookId + 1, borrowCounts.length * 2));
+                            }
+                            borrowCounts[bookId]++;
+                        }
+                        next++;
+                    }
+                }
+                if (next > batchStart) {
+                    drained = next;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    buffer.clear();
+                    boolean caughtUp = published.get((int) next & (RING_RECORDS - 1)) != next + 1;
+                    if (caughtUp || next - forced >= RING_RECORDS) {
+                        channel.force(false);
+                        forced = next;
+                        synchronized (this) {
+                            written = position;
+                            durable = next;
+                            notifyAll();
+                        }
+                    }
+                } else if (closed) {
+                    return;
+                } else {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    // Streams this run's events in the order they were logged.
+    public void scan(Visitor visitor) {
+        flush();
+        long end;
+        synchronized (this) {
+            end = written;
+        }
+        ByteBuffer block = ByteBuffer.allocateDirect(SCAN_RECORDS * RECORD_BYTES);
+        try {
+            for (long position = runStart; position < end; position += block.limit()) {
+                block.clear().limit((int) Math.min(block.capacity(), end - position));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, position + block.position()) < 0) {
+                        throw new EOFException("Event log truncated at " + (position + block.position()));
+                    }
+                }
+                block.flip();
+                while (block.hasRemaining()) {
+                    block.getInt(); // run
+                    visitor.visit(block.getInt(), block.getInt(), block.getInt(), block.getInt());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long getEventCount() {
+        return claimed.get();
+    }
+
+    // The writer keeps the rollup, so it is read once everything is flushed.
+    public int getBorrowCount(int bookId) {
+        flush();
+        synchronized (this) {
+            return bookId < borrowCounts.length ? borrowCounts[bookId] : 0;
+        }
+    }
+
+    // Ids of the most borrowed books, most borrowed first.
+    public int[] mostBorrowed(int limit) {
+        flush();
+        synchronized (this) {
+            return mostBorrowed(borrowCounts, limit);
+        }
+    }
+
+    private static int[] mostBorrowed(int[] borrowCounts, int limit) {
+        int[] top = new int[limit];
+        int n = 0;
+        for (int id = 1; id < borrowCounts.length && limit > 0; id++) {
+            int count = borrowCounts[id];
+            if (count == 0 || n == limit && count <= borrowCounts[top[n - 1]]) {
+                continue;
+            }
+            int i = n < limit ? n++ : n - 1;
+            for (; i > 0 && borrowCounts[top[i - 1]] < count; i--) {
+                top[i] = top[i - 1];
+            }
+            top[i] = id;
+        }
+        return Arrays.copyOf(top, n);
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+}
+
+// Owns every book and patron. Books and patrons are held in primitive-key
+// maps by id, titles in a case-insensitive index, and the search indexes
+// are updated as entries are added, so no lookup walks the collection.
+// Checkout and checkin may be called from many desks at once; adding
+// books and patrons is single-threaded and must not overlap them.
+class Catalog {
+    static final int LOAN_DAYS = 14;
+
+    private final IntMap<Book> books = new IntMap<>();
+    private final IntMap<Patron> patrons = new IntMap<>();
+    // Normalized title to the ids of every copy with that title.
+    private final Map<String, int[]> titles = new HashMap<>();
+    private final BookIndex bookIndex = new BookIndex();
+    private final PatronNameIndex patronIndex = new PatronNameIndex();
+    private final DueDateIndex dueDates = new DueDateIndex(books);
+    private final FineLedger fines = new FineLedger(this);
+    // Where borrows and returns are recorded; null if not logging.
+    private LoanEventLog events;
+    private int lastBookId;
+    private int lastPatronId;
+
+    public Book addBook(String title, String author, String genre) {
+        Book book = new Book(++lastBookId, title, author, genre);
+        books.put(book.getId(), book);
+        titles.merge(Text.normalize(title), new int[] {book.getId()}, (ids, added) -> {
+            int[] grown = Arrays.copyOf(ids, ids.length + 1);
+            grown[ids.length] = added[0];
+            return grown;
+        });
+        bookIndex.add(book);
+        return book;
+    }
+
+    public Patron addPatron(String name, String contactInfo) {
+        Patron patron = new Patron(++lastPatronId, name, contactInfo);
+        patrons.put(patron.getId(), patron);
+        patronIndex.add(patron);
+        return patron;
+    }
+
+    public Book findBook(int id) {
+        return books.get(id);
+    }
+
+    // Lends the book for LOAN_DAYS from today; false if it is not available.
+    // The compare-and-set on the book decides which desk wins; the patron's
+    // lock makes the loan-set update part of the same step.
+    public boolean checkout(Patron patron, Book book, LocalDate today) {
+        synchronized (patron) {
+            if (!book.tryBorrow(patron.getId())) {
+                return false;
+            }
+            book.setDueDate(today.plusDays(LOAN_DAYS));
+            dueDates.add(book);
+            patron.addLoan(book);
+            if (events != null) {
+                events.append(patron.getId(), book.getId(), today, LoanEventLog.BORROW);
+            }
+            return true;
+        }
+    }
+
+    // Any fine still due on the loan is charged before the book goes back.
+    // The book is released last, so no other desk can lend it while the
+    // loan is being closed; false if this patron does not have it.
+    public boolean checkin(Patron patron, Book book, LocalDate today) {
+        synchronized (patron) {
+            if (book.getBorrowerId() != patron.getId()) {
+                return false;
+            }
+            fines.settle(book, today);
+            dueDates.remove(book);
+            book.setDueDate(null);
+            patron.removeLoan(book);
+            if (events != null) {
+                events.append(patron.getId(), book.getId(), today, LoanEventLog.RETURN);
+            }
+            book.release(patron.getId());
+            return true;
+        }
+    }
+
+    public FineLedger getFineLedger() {
+        return fines;
+    }
+
+    public void setEventLog(LoanEventLog events) {
+        this.events = events;
+    }
+
+    public LoanEventLog getEventLog() {
+        return events;
+    }
+
+    // Books on loan whose due date is before asOf, earliest due first.
+    public void forEachOverdue(LocalDate asOf, Consumer<Book> action) {
+        dueDates.forEachOverdue(asOf, action);
+    }
+
+    public int getLoanCount() {
+        return dueDates.size();
+    }
+
+    public Patron findPatron(int id) {
+        return patrons.get(id);
+    }
+
+    // An available copy with this title if there is one, else the first copy; null if none.
+    public Book findBookByTitle(String title) {
+        int[] ids = titles.get(Text.normalize(title));
+        if (ids == null) {
+            return null;
+        }
+        for (int id : ids) {
+            Book book = books.get(id);
+            if (book.isAvailable()) {
+                return book;
+            }
+        }
+        return books.get(ids[0]);
+    }
+
+    // The first patron added with this name, ignoring case and spacing.
+    public Patron findPatronByName(String name) {
+        int[] ids = patronIndex.find(name);
+        return ids.length > 0 ? patrons.get(ids[0]) : null;
+    }
+
+    public List<Book> searchBooks(String keyword) {
+        List<Book> found = new ArrayList<>();
+        for (int id : bookIndex.search(keyword)) {
+            found.add(books.get(id));
+        }
+        return found;
+    }
+
+    public List<Patron> searchPatrons(String prefix, int limit) {
+        List<Patron> found = new ArrayList<>();
+        for (int id : patronIndex.complete(prefix, limit)) {
+            found.add(patrons.get(id));
+        }
+        return found;
+    }
+
+    public int getBookCount() {
+        return books.size();
+    }
+
+    public int getPatronCount() {
+        return patrons.size();
+    }
+
+    // Visits books in id order.
+    public void forEachBook(Consumer<Book> action) {
+        for (int id = 1; id <= lastBookId; id++) {
+            Book book = books.get(id);
+            if (book != null) {
+                action.accept(book);
+            }
+        }
     }
 
-    public boolean containsKeyword(String keyword) {
-        return name.toLowerCase().contains(keyword.toLowerCase());
+    // Visits patrons in id order.
+    public void forEachPatron(Consumer<Patron> action) {
+        for (int id = 1; id <= lastPatronId; id++) {
+            Patron patron = patrons.get(id);
+            if (patron != null) {
+                action.accept(patron);
+            }
+        }
+    }
+}
+
+// Bulk loader for tab-separated files, one record per line: books as
+// title, author, genre and patrons as name, contact info. Blank lines and
+// lines starting with # are ignored. The file is read sequentially through
+// a FileChannel in large blocks; each block is split into records on the
+// fork-join pool while earlier blocks are added to the catalog in file
+// order, so ids follow the file and the indexes are built in the same
+// pass. Authors and genres repeat heavily, so each distinct value is
+// kept once.
+class CatalogImporter {
+    static final byte DELIMITER = '\t';
+    private static final int BLOCK_BYTES = 4 << 20;
+    private static final int MAX_PENDING = ForkJoinPool.getCommonPoolParallelism() + 2;
+
+    static class Result {
+        final long records;
+        final long skipped;
+        final long nanos;
+
+        Result(long records, long skipped, long nanos) {
+            this.records = records;
+            this.skipped = skipped;
+            this.nanos = nanos;
+        }
+
+        long recordsPerSecond() {
+            return records * 1_000_000_000L / Math.max(1, nanos);
+        }
+    }
+
+    private interface Sink {
+        void add(String[] values, int offset);
+    }
+
+    // The records of one block, fields laid out back to back.
+    private static class Block {
+        String[] values;
+        int count;
+        int skipped;
+    }
+
+    private final Catalog catalog;
+    private final ConcurrentHashMap<String, String> shared = new ConcurrentHashMap<>();
+
+    public CatalogImporter(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public Result importBooks(Path path) throws IOException {
+        return load(path, 3, 1, (values, i) -> catalog.addBook(values[i], values[i + 1], values[i + 2]));
+    }
+
+    public Result importPatrons(Path path) throws IOException {
+        return load(path, 2, 2, (values, i) -> catalog.addPatron(values[i], values[i + 1]));
+    }
+
+    // Fields from internFrom on are shared between records.
+    private Result load(Path path, int fields, int internFrom, Sink sink) throws IOException {
+        long start = System.nanoTime();
+        long records = 0;
+        long skipped = 0;
+        Deque<ForkJoinTask<Block>> pending = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_BYTES);
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                if (buffer.hasRemaining() && !eof) {
+                    continue;
+                }
+                byte[] data = buffer.array();
+                int end = buffer.position();
+                int cut = eof ? end : lastLineEnd(data, end);
+                if (cut == 0 && !eof) {
+                    // A single line fills the block
+                    buffer = ByteBuffer.allocate(data.length * 2).put(data, 0, end);
+                    continue;
+                }
+                pending.add(ForkJoinPool.commonPool().submit(() -> parse(data, cut, fields, internFrom)));
+                buffer = ByteBuffer.allocate(Math.max(BLOCK_BYTES, 2 * (end - cut))).put(data, cut, end - cut);
+
+                while (pending.size() > MAX_PENDING || eof && !pending.isEmpty()) {
+                    Block block = pending.removeFirst().join();
+                    for (int i = 0; i < block.count; i++) {
+                        sink.add(block.values, i * fields);
+                    }
+                    records += block.count;
+                    skipped += block.skipped;
+                }
+            }
+        } finally {
+            for (ForkJoinTask<Block> task : pending) {
+                task.cancel(false);
+            }
+        }
+        return new Result(records, skipped, System.nanoTime() - start);
+    }
+
+    private static int lastLineEnd(byte[] data, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (data[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Lines without exactly the expected fields, or with an empty first
+    // field, are counted as skipped.
+    private Block parse(byte[] data, int length, int fields, int internFrom) {
+        Block block = new Block();
+        block.values = new String[fields * 1024];
+        String[] row = new String[fields];
+        for (int start = 0, next; start < length; start = next) {
+            int end = start;
+            while (end < length && data[end] != '\n') {
+                end++;
+            }
+            next = end + 1;
+            if (end > start && data[end - 1] == '\r') {
+                end--;
+            }
+            if (end == start || data[start] == '#') {
+                continue;
+            }
+            int field = 0;
+            for (int i = start, from = start; i <= end && field <= fields; i++) {
+                if (i == end || data[i] == DELIMITER) {
+                    if (field < fields) {
+                        String value = new String(data, from, i - from, StandardCharsets.UTF_8).trim();
+                        row[field] = field >= internFrom ? intern(value) : value;
+                    }
+                    field++;
+                    from = i + 1;
+                }
+            }
+            if (field != fields || row[0].isEmpty()) {
+                block.skipped++;
+                continue;
+            }
+            if ((block.count + 1) * fields > block.values.length) {
+                block.values = Arrays.copyOf(block.values, block.values.length * 2);
+            }
+            System.arraycopy(row, 0, block.values, block.count * fields, fields);
+            block.count++;
+        }
+        return block;
+    }
+
+    private String intern(String value) {
+        String existing = shared.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+}
+
+// Contention test for checkout and return: desks lend and take back a
+// small set of books from many threads, then the loan state is checked.
+// A book lent twice would sit in two patrons' loan sets, and only the
+// recorded borrower can ever return it, so the check at the end sees it.
+// Every borrow and return goes to an event log, which is then replayed:
+// each book's events must alternate borrow and return by the same patron
+// and end with whoever holds it now.
+class CirculationStress {
+    static final int PATRONS = 10_000;
+
+    static boolean run(int desks, int bookCount, int seconds, Path logFile) throws InterruptedException, IOException {
+        Catalog catalog = new Catalog();
+        LoanEventLog events = new LoanEventLog(logFile);
+        catalog.setEventLog(events);
+        for (int i = 1; i <= bookCount; i++) {
+            catalog.addBook("Stress Book " + i, "Stress Author", "Stress");
+        }
+        for (int i = 1; i <= PATRONS; i++) {
+            catalog.addPatron("Stress Patron " + i, "");
+        }
+        LocalDate today = LocalDate.now();
+        LongAdder checkouts = new LongAdder();
+        LongAdder checkins = new LongAdder();
+        LongAdder refused = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[desks];
+        for (int d = 0; d < desks; d++) {
+            threads[d] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    Book book = catalog.findBook(1 + random.nextInt(bookCount));
+                    if (random.nextBoolean()) {
+                        Patron patron = catalog.findPatron(1 + random.nextInt(PATRONS));
+                        if (catalog.checkout(patron, book, today)) {
+                            checkouts.increment();
+                        } else {
+                            refused.increment();
+                        }
+                    } else {
+                        // Return it for whoever has it; other desks may beat us to it
+                        int holder = book.getBorrowerId();
+                        if (holder != 0 && catalog.checkin(catalog.findPatron(holder), book, today)) {
+                            checkins.increment();
+                        } else {
+                            refused.increment();
+                        }
+                    }
+                }
+            });
+            threads[d].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int[] holders = new int[bookCount + 1];
+        int[] problems = new int[1];
+        catalog.forEachPatron(patron -> {
+            for (Book book : patron.getBorrowedBooks()) {
+                holders[book.getId()]++;
+                if (book.getBorrowerId() != patron.getId()) {
+                    problems[0]++;
+                }
+            }
+        });
+        int[] onLoan = new int[1];
+        catalog.forEachBook(book -> {
+            int expected = book.isAvailable() ? 0 : 1;
+            if (holders[book.getId()] != expected) {
+                System.out.println("Book " + book.getId() + " is held by " + holders[book.getId()] + " patrons");
+                problems[0]++;
+            }
+            onLoan[0] += expected;
+        });
+        if (checkouts.sum() - checkins.sum() != onLoan[0] || catalog.getLoanCount() != onLoan[0]) {
+            problems[0]++;
+        }
+
+        long flushStart = System.nanoTime();
+        events.flush();
+        long flushMicros = (System.nanoTime() - flushStart) / 1000;
+        int[] logged = new int[bookCount + 1];
+        long[] replayed = new long[1];
+        events.scan((patronId, bookId, epochDay, type) -> {
+            replayed[0]++;
+            if (type == LoanEventLog.BORROW ? logged[bookId] != 0 : logged[bookId] != patronId) {
+                problems[0]++;
+            }
+            logged[bookId] = type == LoanEventLog.BORROW ? patronId : 0;
+        });
+        catalog.forEachBook(book -> {
+            if (logged[book.getId()] != book.getBorrowerId()) {
+                System.out.println("Book " + book.getId() + " is held by " + book.getBorrowerId()
+                        + " but the log says " + logged[book.getId()]);
+                problems[0]++;
+            }
+        });
+        if (replayed[0] != checkouts.sum() + checkins.sum() || events.getEventCount() != replayed[0]) {
+            System.out.println("Logged " + replayed[0] + " events for " + (checkouts.sum() + checkins.sum()) + " loans and returns");
+            problems[0]++;
+        }
+        events.close();
+
+        long operations = checkouts.sum() + checkins.sum() + refused.sum();
+        System.out.println("Desks: " + desks + ", books: " + bookCount + ", patrons: " + PATRONS);
+        System.out.println("Operations: " + operations + " (" + operations / Math.max(1, seconds) + "/s)");
+        System.out.println("Checkouts: " + checkouts.sum() + ", returns: " + checkins.sum() + ", refused: " + refused.sum());
+        System.out.println("On loan: " + onLoan[0] + ", due-date index: " + catalog.getLoanCount());
+        System.out.println("Events logged: " + replayed[0] + ", final flush: " + flushMicros + " us");
+        System.out.println(problems[0] == 0 ? "No book was lent twice." : "FAILED: " + problems[0] + " inconsistencies.");
+        return problems[0] == 0;
     }
 }
 
 public class LibraryManagementSystem {
-    private static void generateBookAvailabilityReport(List<Book> books) {
+    private static final int PATRON_SEARCH_LIMIT = 20;
+    private static final int MOST_BORROWED_LIMIT = 10;
+    private static final String EVENT_LOG_FILE = "library-events.log";
+
+    private static void generateBookAvailabilityReport(Catalog catalog) {
         System.out.println("Book Availability Report:");
-        for (Book book : books) {
+        catalog.forEachBook(book -> {
             System.out.println("Book Title: " + book.getTitle());
             System.out.println("Book Author: " + book.getAuthor());
             System.out.println("Available: " + (book.isAvailable() ? "Yes" : "No"));
             System.out.println("-------------------");
-        }
+        });
     }
 
-    private static void generateBorrowingHistoryReport(List<Patron> patrons) {
+    // Every borrow and return the patron has made this run, streamed from the event log
+    private static void generateBorrowingHistoryReport(Catalog catalog, Patron patron) {
         System.out.println("Borrowing History Report:");
-        for (Patron patron : patrons) {
-            System.out.println("Patron Name: " + patron.getName());
-            System.out.println("Borrowed Books:");
-            List<Book> borrowedBooks = patron.getBorrowedBooks();
-            if (borrowedBooks.isEmpty()) {
-                System.out.println("No books borrowed.");
-            } else {
-                for (Book book : borrowedBooks) {
-                    System.out.println("- " + book.getTitle());
-                }
+        System.out.println("Patron Name: " + patron.getName());
+        int[] count = new int[1];
+        catalog.getEventLog().scan((patronId, bookId, epochDay, type) -> {
+            if (patronId == patron.getId()) {
+                System.out.println(LocalDate.ofEpochDay(epochDay) + (type == LoanEventLog.BORROW ? " borrowed " : " returned ")
+                        + catalog.findBook(bookId).getTitle());
+                count[0]++;
             }
-            System.out.println("-------------------");
+        });
+        if (count[0] == 0) {
+            System.out.println("No books borrowed.");
         }
+        System.out.println("Currently borrowed: " + patron.getBorrowedBooks().size());
+        System.out.println("-------------------");
     }
 
-    // Generate a report on fines
-    private static void generateFinesReport(List<Book> books) {
+    private static void generateMostBorrowedReport(Catalog catalog) {
+        System.out.println("Most Borrowed Books:");
+        LoanEventLog events = catalog.getEventLog();
+        int rank = 0;
+        for (int bookId : events.mostBorrowed(MOST_BORROWED_LIMIT)) {
+            System.out.println(++rank + ". " + catalog.findBook(bookId).getTitle() + " (" + events.getBorrowCount(bookId) + " loans)");
+        }
+        if (rank == 0) {
+            System.out.println("No books borrowed.");
+        }
+    }
+
+    // Generate a report on fines; only overdue loans can carry one
+    private static void generateFinesReport(Catalog catalog) {
         System.out.println("Fines Report:");
-        for (Book book : books) {
-            double fine = calculateFine(book);
-            if (fine > 0) {
-                System.out.println("Book Title: " + book.getTitle());
-                System.out.println("Fine Amount: $" + fine);
-                System.out.println("-------------------");
-            }
+        LocalDate today = LocalDate.now();
+        catalog.forEachOverdue(today, book -> {
+            System.out.println("Book Title: " + book.getTitle());
+            System.out.println("Borrower: " + catalog.findPatron(book.getBorrowerId()).getName());
+            System.out.println("Fine Amount: $" + FineLedger.format(calculateFine(book, today)));
+            System.out.println("-------------------");
+        });
+        System.out.println("Total fines owed: $" + FineLedger.format(catalog.getFineLedger().getTotalOwed()));
+    }
+
+    private static void generateOverdueReport(Catalog catalog, LocalDate asOf) {
+        System.out.println("Books overdue as of " + asOf + ":");
+        int[] count = new int[1];
+        catalog.forEachOverdue(asOf, book -> {
+            System.out.println("Book ID: " + book.getId() + ", Title: " + book.getTitle() + ", Due: " + book.getDueDate());
+            count[0]++;
+        });
+        if (count[0] == 0) {
+            System.out.println("No books overdue.");
         }
     }
 
-    private static void searchBooks(List<Book> books, String keyword) {
-        boolean found = false;
-        for (Book book : books) {
-            if (book.containsKeyword(keyword)) {
-                System.out.println(book);
-                System.out.println("-------------------");
-                found = true;
-            }
+    // Matches books whose title, author or genre contain every word of the keyword.
+    private static void searchBooks(Catalog catalog, String keyword) {
+        List<Book> found = catalog.searchBooks(keyword);
+        for (Book book : found) {
+            System.out.println(book);
+            System.out.println("-------------------");
         }
-        if (!found) {
+        if (found.isEmpty()) {
             System.out.println("No books found matching the keyword.");
         }
     }
 
-    // Search and display patrons containing a keyword in their name
-    private static void searchPatrons(List<Patron> patrons, String keyword) {
-        boolean found = false;
-        for (Patron patron : patrons) {
-            if (patron.containsKeyword(keyword)) {
-                System.out.println(patron);
-                System.out.println("-------------------");
-                found = true;
-            }
+    // Search and display patrons whose name starts with the keyword
+    private static void searchPatrons(Catalog catalog, String keyword) {
+        List<Patron> found = catalog.searchPatrons(keyword, PATRON_SEARCH_LIMIT + 1);
+        for (int i = 0; i < Math.min(found.size(), PATRON_SEARCH_LIMIT); i++) {
+            System.out.println(found.get(i));
+            System.out.println("-------------------");
         }
-        if (!found) {
+        if (found.isEmpty()) {
             System.out.println("No patrons found matching the keyword.");
+        } else if (found.size() > PATRON_SEARCH_LIMIT) {
+            System.out.println("Showing the first " + PATRON_SEARCH_LIMIT + " matches; type more of the name to narrow it.");
         }
     }
 
-    private static double calculateFine(Book book) {
+    // Fine in cents the current loan has run up as of currentDate
+    private static long calculateFine(Book book, LocalDate currentDate) {
         if (book.getDueDate() == null) {
-            return 0.0; // No fine if due date is not set
+            return 0; // No fine if due date is not set
         }
 
-        LocalDate currentDate = LocalDate.now();
         long daysOverdue = ChronoUnit.DAYS.between(book.getDueDate(), currentDate);
-        double finePerDay = 0.50; // Adjust the fine rate as needed
 
         if (daysOverdue <= 0) {
-            return 0.0; // No fine if not overdue
+            return 0; // No fine if not overdue
         } else {
-            return daysOverdue * finePerDay;
+            return daysOverdue * FineLedger.FINE_PER_DAY_CENTS;
         }
     }
 
-    public static void main(String[] args) {
+    // Reads a whole line, so titles and names may contain spaces; -1 if it is not a number
+    private static int readInt(Scanner scanner) {
+        try {
+            return Integer.parseInt(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void importFile(Catalog catalog, String file, boolean books) {
+        try {
+            CatalogImporter importer = new CatalogImporter(catalog);
+            CatalogImporter.Result result = books ? importer.importBooks(Paths.get(file)) : importer.importPatrons(Paths.get(file));
+            System.out.println("Imported " + result.records + (books ? " books" : " patrons") + " in "
+                    + result.nanos / 1_000_000 + " ms (" + result.recordsPerSecond() + " records/s).");
+            if (result.skipped > 0) {
+                System.out.println("Skipped " + result.skipped + " malformed lines.");
+            }
+        } catch (IOException | InvalidPathException e) {
+            System.out.println("Import failed: " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length > 0 && args[0].equals("--stress")) {
+            int desks = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+            int books = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+            int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+            Path logFile = args.length > 4 ? Paths.get(args[4]) : Files.createTempFile("circulation-stress", ".log");
+            boolean passed;
+            try {
+                passed = CirculationStress.run(desks, books, seconds, logFile);
+            } finally {
+                if (args.length <= 4) {
+                    Files.deleteIfExists(logFile);
+                }
+            }
+            System.exit(passed ? 0 : 1);
+        }
         Scanner scanner = new Scanner(System.in);
-        List<Book> books = new ArrayList<>();
-        List<Patron> patrons = new ArrayList<>();
+        Catalog catalog = new Catalog();
+        try {
+            catalog.setEventLog(new LoanEventLog(Paths.get(EVENT_LOG_FILE)));
+        } catch (IOException e) {
+            System.out.println("Borrowing history is off; cannot open " + EVENT_LOG_FILE + ": " + e.getMessage());
+        }
         while (true) {
             System.out.println("Library Management System");
             System.out.println("1. Add Book");
@@ -230,60 +1645,55 @@ public class LibraryManagementSystem {
             System.out.println("9. Fines Report");
             System.out.println("10. Book Availability Report");
             System.out.println("11 Exit");
+            System.out.println("12. Overdue Books As Of Date");
+            System.out.println("13. Most Borrowed Books");
+            System.out.println("14. Import Books From File");
+            System.out.println("15. Import Patrons From File");
             System.out.print("Enter your choice: ");
 
-            int choice = scanner.nextInt();
+            int choice = readInt(scanner);
+            // Daily fine accrual; a no-op after the first pass of the day
+            catalog.getFineLedger().accrue(LocalDate.now());
 
             switch (choice) {
                 case 1:
                     // Add a book
                     System.out.print("Enter Book Title: ");
-                    String bookTitle = scanner.next();
+                    String bookTitle = scanner.nextLine().trim();
                     System.out.print("Enter Author: ");
-                    String bookAuthor = scanner.next();
+                    String bookAuthor = scanner.nextLine().trim();
                     System.out.print("Enter Genre: ");
-                    String bookGenre = scanner.next();
-                    Book book = new Book(books.size() + 1, bookTitle, bookAuthor, bookGenre);
-                    books.add(book);
+                    String bookGenre = scanner.nextLine().trim();
+                    catalog.addBook(bookTitle, bookAuthor, bookGenre);
                     System.out.println("Book added successfully.");
                     break;
 
                 case 2:
                     // Add a patron
                     System.out.print("Enter Patron Name: ");
-                    String patronName = scanner.next();
+                    String patronName = scanner.nextLine().trim();
                     System.out.print("Enter Contact Info: ");
-                    String patronContactInfo = scanner.next();
-                    Patron patron = new Patron(patrons.size() + 1, patronName, patronContactInfo);
-                    patrons.add(patron);
+                    String patronContactInfo = scanner.nextLine().trim();
+                    catalog.addPatron(patronName, patronContactInfo);
                     System.out.println("Patron added successfully.");
                     break;
 
                 case 3:
                     // Borrow a book
                     System.out.print("Enter Patron Name: ");
-                    String borrowPatronName = scanner.next(); // Rename the variable to avoid conflicts
+                    String borrowPatronName = scanner.nextLine().trim(); // Rename the variable to avoid conflicts
                     System.out.print("Enter Book Title: ");
-                    String borrowBookTitle = scanner.next(); // Rename the variable to avoid conflicts
+                    String borrowBookTitle = scanner.nextLine().trim(); // Rename the variable to avoid conflicts
 
-                    Patron selectedBorrowPatron = null;
-                    for (Patron p : patrons) {
-                        if (p.getName().equalsIgnoreCase(borrowPatronName)) {
-                            selectedBorrowPatron = p;
-                            break;
-                        }
-                    }
-
-                    Book selectedBorrowBook = null;
-                    for (Book b : books) {
-                        if (b.getTitle().equalsIgnoreCase(borrowBookTitle)) {
-                            selectedBorrowBook = b;
-                            break;
-                        }
-                    }
+                    Patron selectedBorrowPatron = catalog.findPatronByName(borrowPatronName);
+                    Book selectedBorrowBook = catalog.findBookByTitle(borrowBookTitle);
 
                     if (selectedBorrowPatron != null && selectedBorrowBook != null) {
-                        selectedBorrowPatron.borrowBook(selectedBorrowBook);
+                        if (catalog.checkout(selectedBorrowPatron, selectedBorrowBook, LocalDate.now())) {
+                            System.out.println(selectedBorrowPatron.getName() + " has borrowed " + selectedBorrowBook.getTitle());
+                        } else {
+                            System.out.println(selectedBorrowBook.getTitle() + " is not available for borrowing.");
+                        }
                     } else {
                         System.out.println("Invalid Patron or Book Name.");
                     }
@@ -292,28 +1702,19 @@ public class LibraryManagementSystem {
                 case 4:
                     // Return a book
                     System.out.print("Enter Patron ID: ");
-                    int patronIDReturn = scanner.nextInt();
+                    int patronIDReturn = readInt(scanner);
                     System.out.print("Enter Book ID: ");
-                    int bookIDReturn = scanner.nextInt();
+                    int bookIDReturn = readInt(scanner);
 
-                    Patron selectedPatronReturn = null;
-                    for (Patron p : patrons) {
-                        if (p.getId() == patronIDReturn) {
-                            selectedPatronReturn = p;
-                            break;
-                        }
-                    }
-
-                    Book selectedBookReturn = null;
-                    for (Book b : books) {
-                        if (b.getId() == bookIDReturn) {
-                            selectedBookReturn = b;
-                            break;
-                        }
-                    }
+                    Patron selectedPatronReturn = catalog.findPatron(patronIDReturn);
+                    Book selectedBookReturn = catalog.findBook(bookIDReturn);
 
                     if (selectedPatronReturn != null && selectedBookReturn != null) {
-                        selectedPatronReturn.returnBook(selectedBookReturn);
+                        if (catalog.checkin(selectedPatronReturn, selectedBookReturn, LocalDate.now())) {
+                            System.out.println(selectedPatronReturn.getName() + " has returned " + selectedBookReturn.getTitle());
+                        } else {
+                            System.out.println(selectedPatronReturn.getName() + " did not borrow " + selectedBookReturn.getTitle());
+                        }
                     } else {
                         System.out.println("Invalid Patron or Book ID.");
                     }
@@ -321,53 +1722,101 @@ public class LibraryManagementSystem {
 
                 case 5:
                     // List available books
-                    for (Book availableBook : books) {
+                    catalog.forEachBook(availableBook -> {
                         if (availableBook.isAvailable()) {
                             System.out.println(availableBook);
                             System.out.println("-------------------");
                         }
-                    }
+                    });
                     break;
 
                 case 6:
                     // Search Books
                     System.out.print("Enter a keyword to search for books: ");
-                    String bookKeyword = scanner.next();
+                    String bookKeyword = scanner.nextLine().trim();
                     System.out.println("Search results for books:");
-                    searchBooks(books, bookKeyword);
+                    searchBooks(catalog, bookKeyword);
                     break;
 
                 case 7:
                     // Search Patrons
                     System.out.print("Enter a keyword to search for patrons: ");
-                    String patronKeyword = scanner.next();
+                    String patronKeyword = scanner.nextLine().trim();
                     System.out.println("Search results for patrons:");
-                    searchPatrons(patrons, patronKeyword);
+                    searchPatrons(catalog, patronKeyword);
                     break;
 
                 case 8:
                     // Generate a report on borrowing history
-                    generateBorrowingHistoryReport(patrons);
+                    if (catalog.getEventLog() == null) {
+                        System.out.println("Borrowing history is not being recorded.");
+                        break;
+                    }
+                    System.out.print("Enter Patron ID: ");
+                    Patron historyPatron = catalog.findPatron(readInt(scanner));
+                    if (historyPatron != null) {
+                        generateBorrowingHistoryReport(catalog, historyPatron);
+                    } else {
+                        System.out.println("Invalid Patron ID.");
+                    }
                     break;
 
                 case 9:
                     // Generate a report on fines
-                    generateFinesReport(books);
+                    generateFinesReport(catalog);
                     break;
 
                 case 10:
                     // Generate a report on book availability
-                    generateBookAvailabilityReport(books);
+                    generateBookAvailabilityReport(catalog);
                     break;
 
                 case 11:
                     System.out.println("Exiting the program.");
                     scanner.close();
+                    if (catalog.getEventLog() != null) {
+                        try {
+                            catalog.getEventLog().close();
+                        } catch (IOException e) {
+                            System.out.println("Could not save the event log: " + e.getMessage());
+                        }
+                    }
                     System.exit(0);
+                    break;
+
+                case 12:
+                    // List loans overdue as of a date
+                    System.out.print("Enter date (YYYY-MM-DD): ");
+                    String asOfText = scanner.nextLine().trim();
+                    try {
+                        generateOverdueReport(catalog, LocalDate.parse(asOfText));
+                    } catch (DateTimeParseException e) {
+                        System.out.println("Invalid date.");
+                    }
+                    break;
+
+                case 13:
+                    // Rank books by how often they have been borrowed
+                    if (catalog.getEventLog() != null) {
+                        generateMostBorrowedReport(catalog);
+                    } else {
+                        System.out.println("Borrowing history is not being recorded.");
+                    }
+                    break;
+
+                case 14:
+                case 15:
+                    // Bulk load tab-separated title/author/genre or name/contact lines
+                    System.out.print("Enter file path: ");
+                    importFile(catalog, scanner.nextLine().trim(), choice == 14);
+                    break;
 
                 default:
                     System.out.println("Invalid choice. Please enter a valid option.");
             }
+            if (catalog.getEventLog() != null) {
+                catalog.getEventLog().flush();
+            }
         }
     }
 }
\ No newline at end of file
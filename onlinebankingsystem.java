@@ -1,252 +1,5346 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 enum TransactionType {
-    DEPOSIT, WITHDRAWAL, TRANSFER, LOAN_PAYMENT
+    DEPOSIT, WITHDRAWAL, TRANSFER, LOAN_PAYMENT;
+
+    private static final TransactionType[] VALUES = values();
+
+    public static TransactionType fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
+
+enum PostingStatus {
+    OK, MALFORMED, INVALID_PIN, INVALID_SESSION, INVALID_AMOUNT, ACCOUNT_NOT_FOUND, LOAN_NOT_FOUND,
+    DUPLICATE_ACCOUNT, DUPLICATE_LOAN, SAME_ACCOUNT, INSUFFICIENT_FUNDS, VELOCITY_LIMIT, PAYMENT_EXCEEDS_BALANCE,
+    LOAN_PAID_OFF, UNSUPPORTED
+}
+
+// Amounts are held as long cents everywhere; these helpers convert at the edges.
+class Money {
+
+    public static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).movePointRight(2).longValueExact();
+    }
+
+    public static String format(long cents) {
+        long abs = Math.abs(cents);
+        String fraction = abs % 100 < 10 ? "0" + abs % 100 : String.valueOf(abs % 100);
+        return (cents < 0 ? "-" : "") + abs / 100 + "." + fraction;
+    }
+}
+
+enum BankOperation {
+    DEPOSIT, WITHDRAWAL, TRANSFER, LOAN_PAYMENT, CREATE_ACCOUNT, APPLY_LOAN, BALANCE, HISTORY, SNAPSHOT,
+    ACCRUE_INTEREST, CHECKPOINT, BATCH_POSTING, LOGIN
+}
+
+// Log-linear latency histogram in the style of HdrHistogram: each power of
+// two is split into 32 linear sub-buckets, so a value is off from its bucket
+// by at most about 3%. Counts are striped by thread like SnapshotClock, and
+// recording is a single atomic increment with no allocation.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        int stripe = (int) (Thread.currentThread().threadId() % STRIPES);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(value));
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    // Per-bucket totals over all stripes, for percentile queries.
+    public long[] snapshot() {
+        long[] totals = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int b = 0; b < BUCKETS; b++) {
+                totals[b] += counts.get(stripe * BUCKETS + b);
+            }
+        }
+        return totals;
+    }
+
+    // Highest value of the bucket holding the given percentile (0-100], capped
+    // at the largest value recorded.
+    public long percentile(long[] totals, double percentile) {
+        long count = 0;
+        for (long c : totals) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int b = 0; b < totals.length; b++) {
+            seen += totals[b];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(b), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
+
+// Process-wide counters and latency histograms for every account, loan and
+// bank operation. Call counts come from the histograms; latency sums and
+// failures (per operation and PostingStatus) are LongAdders. Published over JMX as bank:type=Metrics
+// and optionally dumped as text to a file on a fixed period.
+class BankMetrics implements DynamicMBean {
+    private static final BankOperation[] OPERATIONS = BankOperation.values();
+    private static final PostingStatus[] STATUSES = PostingStatus.values();
+    private static final String[] PERCENTILE_NAMES = {"p50Nanos", "p90Nanos", "p99Nanos", "p999Nanos"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    static final BankMetrics GLOBAL = new BankMetrics();
+
+    private final LongAdder[] totalNanos = new LongAdder[OPERATIONS.length];
+    private final LongAdder[] failures = new LongAdder[OPERATIONS.length * STATUSES.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final MBeanInfo info;
+    private ScheduledExecutorService dumper;
+
+    BankMetrics() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (BankOperation operation : OPERATIONS) {
+            int o = operation.ordinal();
+            totalNanos[o] = new LongAdder();
+            latencies[o] = new LatencyHistogram();
+            attributes.add(attribute(operation + ".calls"));
+            attributes.add(attribute(operation + ".failures"));
+            attributes.add(attribute(operation + ".meanNanos"));
+            for (String name : PERCENTILE_NAMES) {
+                attributes.add(attribute(operation + "." + name));
+            }
+            attributes.add(attribute(operation + ".maxNanos"));
+        }
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+        for (PostingStatus status : STATUSES) {
+            if (status != PostingStatus.OK) {
+                attributes.add(attribute("failures." + status));
+            }
+        }
+        MBeanOperationInfo dump = new MBeanOperationInfo("dump", "Text report of all operations",
+                new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO);
+        info = new MBeanInfo(BankMetrics.class.getName(), "Banking operation counters and latencies",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {dump}, null);
+    }
+
+    // Records one call that started at startNanos (from System.nanoTime()).
+    public void record(BankOperation operation, PostingStatus status, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        int o = operation.ordinal();
+        totalNanos[o].add(elapsed);
+        if (status != PostingStatus.OK) {
+            failures[o * STATUSES.length + status.ordinal()].increment();
+        }
+        latencies[o].record(elapsed);
+    }
+
+    public long getCalls(BankOperation operation) {
+        return latencies[operation.ordinal()].getCount();
+    }
+
+    public long getFailures(BankOperation operation, PostingStatus status) {
+        return failures[operation.ordinal() * STATUSES.length + status.ordinal()].sum();
+    }
+
+    public long getFailures(BankOperation operation) {
+        long total = 0;
+        for (PostingStatus status : STATUSES) {
+            total += getFailures(operation, status);
+        }
+        return total;
+    }
+
+    public long getFailures(PostingStatus status) {
+        long total = 0;
+        for (BankOperation operation : OPERATIONS) {
+            total += getFailures(operation, status);
+        }
+        return total;
+    }
+
+    public long getMeanNanos(BankOperation operation) {
+        long count = getCalls(operation);
+        return count == 0 ? 0 : totalNanos[operation.ordinal()].sum() / count;
+    }
+
+    public long getPercentileNanos(BankOperation operation, double percentile) {
+        LatencyHistogram histogram = latencies[operation.ordinal()];
+        return histogram.percentile(histogram.snapshot(), percentile);
+    }
+
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("bank:type=Metrics");
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    public String dump() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-16s %12s %10s %10s %10s %10s %10s %10s %10s%n", "operation", "calls",
+                "failures", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)"));
+        for (BankOperation operation : OPERATIONS) {
+            long count = getCalls(operation);
+            if (count == 0) {
+                continue;
+            }
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            long[] totals = histogram.snapshot();
+            report.append(String.format("%-16s %12d %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", operation,
+                    count, getFailures(operation), getMeanNanos(operation) / 1e3,
+                    histogram.percentile(totals, 50) / 1e3, histogram.percentile(totals, 90) / 1e3,
+                    histogram.percentile(totals, 99) / 1e3, histogram.percentile(totals, 99.9) / 1e3,
+                    histogram.getMax() / 1e3));
+            for (PostingStatus status : STATUSES) {
+                long failed = getFailures(operation, status);
+                if (failed > 0) {
+                    report.append(String.format("    %-28s %10d%n", status, failed));
+                }
+            }
+        }
+        return report.toString();
+    }
+
+    // Rewrites the report file every period; the file is replaced atomically.
+    public synchronized void startDump(Path file, long periodSeconds) {
+        if (dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bank-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.writeString(temp, Instant.now() + System.lineSeparator() + dump());
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("Metrics dump failed: " + e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        int dot = attribute.indexOf('.');
+        if (dot < 0) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        String owner = attribute.substring(0, dot);
+        String metric = attribute.substring(dot + 1);
+        try {
+            if (owner.equals("failures")) {
+                return getFailures(PostingStatus.valueOf(metric));
+            }
+            BankOperation operation = BankOperation.valueOf(owner);
+            switch (metric) {
+                case "calls":
+                    return getCalls(operation);
+                case "failures":
+                    return getFailures(operation);
+                case "meanNanos":
+                    return getMeanNanos(operation);
+                case "maxNanos":
+                    return latencies[operation.ordinal()].getMax();
+                default:
+                    for (int i = 0; i < PERCENTILE_NAMES.length; i++) {
+                        if (PERCENTILE_NAMES[i].equals(metric)) {
+                            return getPercentileNanos(operation, PERCENTILES[i]);
+                        }
+                    }
+                    throw new AttributeNotFoundException(attribute);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown names are left out, as the DynamicMBean contract allows.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("dump")) {
+            return dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+
+    private static MBeanAttributeInfo attribute(String name) {
+        return new MBeanAttributeInfo(name, "long", name, true, false, false);
+    }
+}
+
+// Columnar per-account history: one primitive array per field, grown in
+// place, so appending an entry does not allocate. Accounts without any
+// activity share one empty set of columns. Timestamps never decrease,
+// which lets range queries binary search them, and each type keeps a sorted
+// list of its entry positions for filtered queries.
+//
+// A single writer (holding the account lock) appends; readers need no lock.
+// The writer fills an entry before publishing the new size, and swaps in a
+// new Columns holder only after copying, so a reader that reads size, then
+// the type counts, then the holder always sees complete entries below size.
+class TransactionHistory {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int TYPE_COUNT = TransactionType.values().length;
+
+    private static final class Columns {
+        final byte[] types;
+        final long[] amounts;
+        final long[] timestamps;
+        final long[] sequences;
+        final int[][] positionsByType;
+
+        Columns(byte[] types, long[] amounts, long[] timestamps, long[] sequences, int[][] positionsByType) {
+            this.types = types;
+            this.amounts = amounts;
+            this.timestamps = timestamps;
+            this.sequences = sequences;
+            this.positionsByType = positionsByType;
+        }
+    }
+
+    private static final Columns EMPTY = new Columns(new byte[0], new long[0], new long[0], new long[0],
+            new int[TYPE_COUNT][0]);
+
+    private volatile Columns columns = EMPTY;
+    private volatile int size;
+    private final AtomicIntegerArray typeCounts = new AtomicIntegerArray(TYPE_COUNT);
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    public void append(TransactionType type, long amount, long timestamp, long sequence) {
+        Columns c = columns;
+        int index = size;
+        int t = type.ordinal();
+        int typeCount = typeCounts.get(t);
+        if (index == c.types.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, index + (index >> 1));
+            c = new Columns(Arrays.copyOf(c.types, capacity), Arrays.copyOf(c.amounts, capacity),
+                    Arrays.copyOf(c.timestamps, capacity), Arrays.copyOf(c.sequences, capacity), c.positionsByType);
+        }
+        if (typeCount == c.positionsByType[t].length) {
+            int[][] positionsByType = c.positionsByType.clone();
+            positionsByType[t] = Arrays.copyOf(positionsByType[t], Math.max(INITIAL_CAPACITY, typeCount + (typeCount >> 1)));
+            c = new Columns(c.types, c.amounts, c.timestamps, c.sequences, positionsByType);
+        }
+        if (c != columns) {
+            columns = c;
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        c.types[index] = (byte) t;
+        c.amounts[index] = amount;
+        c.timestamps[index] = lastTimestamp;
+        c.sequences[index] = sequence;
+        c.positionsByType[t][typeCount] = index;
+        typeCounts.set(t, typeCount + 1);
+        size = index + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TransactionType typeAt(int index) {
+        return TransactionType.fromOrdinal(columns.types[index]);
+    }
+
+    public long amountAt(int index) {
+        return columns.amounts[index];
+    }
+
+    public long timestampAt(int index) {
+        return columns.timestamps[index];
+    }
+
+    public long sequenceAt(int index) {
+        return columns.sequences[index];
+    }
+
+    public Transaction get(int index) {
+        Columns c = columns;
+        return new Transaction(TransactionType.fromOrdinal(c.types[index]), c.amounts[index], c.timestamps[index],
+                c.sequences[index]);
+    }
+
+    // Returns up to limit entries with fromTimestamp <= timestamp < toTimestamp,
+    // optionally of one type, starting at the cursor from a previous page (0 for
+    // the first page). Costs O(log n + limit).
+    public HistoryPage page(long fromTimestamp, long toTimestamp, TransactionType type, long cursor, int limit) {
+        int end = size;
+        List<Transaction> entries = new ArrayList<>(Math.min(limit, 64));
+        if (type == null) {
+            Columns c = columns;
+            int start = (int) Math.max(cursor, lowerBound(c.timestamps, end, fromTimestamp));
+            int stop = lowerBound(c.timestamps, end, toTimestamp);
+            int index = start;
+            while (index < stop && entries.size() < limit) {
+                entries.add(new Transaction(TransactionType.fromOrdinal(c.types[index]), c.amounts[index],
+                        c.timestamps[index], c.sequences[index]));
+                index++;
+            }
+            return new HistoryPage(entries, index < stop ? index : HistoryPage.NO_MORE);
+        }
+        int t = type.ordinal();
+        int typeCount = typeCounts.get(t);
+        Columns c = columns;
+        int[] positions = c.positionsByType[t];
+        int count = lowerBound(positions, typeCount, end);
+        int k = Math.max(lowerBound(positions, count, (int) Math.min(cursor, Integer.MAX_VALUE)),
+                lowerBoundByTimestamp(positions, count, c.timestamps, fromTimestamp));
+        while (k < count && c.timestamps[positions[k]] < toTimestamp && entries.size() < limit) {
+            int index = positions[k];
+            entries.add(new Transaction(type, c.amounts[index], c.timestamps[index], c.sequences[index]));
+            k++;
+        }
+        boolean more = k < count && c.timestamps[positions[k]] < toTimestamp;
+        return new HistoryPage(entries, more ? positions[k] : HistoryPage.NO_MORE);
+    }
+
+    // Position of the first of the first end entries at or after timestamp.
+    public int firstIndexAtOrAfter(long timestamp, int end) {
+        return lowerBound(columns.timestamps, end, timestamp);
+    }
+
+    private static int lowerBound(long[] values, int length, long key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int lowerBound(int[] values, int length, int key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int lowerBoundByTimestamp(int[] positions, int length, long[] timestamps, long key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[positions[mid]] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
+
+class HistoryPage {
+    static final long NO_MORE = -1;
+
+    private final List<Transaction> entries;
+    private final long nextCursor;
+
+    HistoryPage(List<Transaction> entries, long nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Transaction> getEntries() {
+        return entries;
+    }
+
+    // Pass back to fetch the following page; NO_MORE when the range is exhausted.
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != NO_MORE;
+    }
+}
+
+// Epoch clock behind point-in-time balance snapshots. Every balance change
+// runs inside enter()/exit() while its account locks are held and is tagged
+// with the epoch it entered. seal() moves new commits to the next epoch and
+// waits only for the commits already inside the old one, so a snapshot of
+// "every version tagged <= the sealed epoch" is consistent, and postings
+// never wait for snapshot readers. In-flight counts are striped by thread so
+// enter/exit do not contend on one counter.
+class SnapshotClock {
+    static final SnapshotClock UNATTACHED = new SnapshotClock();
+
+    private static final int STRIPES = 64;
+    private static final int PADDING = 8;
+
+    private volatile long epoch = 1;
+    private final AtomicLongArray[] active = {
+            new AtomicLongArray(STRIPES * PADDING), new AtomicLongArray(STRIPES * PADDING) };
+    private final AtomicInteger openSnapshots = new AtomicInteger();
+
+    public long epoch() {
+        return epoch;
+    }
+
+    long enter() {
+        int stripe = stripe();
+        while (true) {
+            long e = epoch;
+            AtomicLongArray counts = active[(int) (e & 1)];
+            counts.incrementAndGet(stripe);
+            if (epoch == e) {
+                return e;
+            }
+            counts.decrementAndGet(stripe);
+        }
+    }
+
+    void exit(long e) {
+        active[(int) (e & 1)].decrementAndGet(stripe());
+    }
+
+    boolean hasOpenSnapshots() {
+        return openSnapshots.get() > 0;
+    }
+
+    // Opens a snapshot and returns its sealed epoch; pair with close().
+    synchronized long open() {
+        openSnapshots.incrementAndGet();
+        long sealed = epoch;
+        epoch = sealed + 1;
+        AtomicLongArray counts = active[(int) (sealed & 1)];
+        for (int i = 0; i < STRIPES; i++) {
+            while (counts.get(i * PADDING) != 0) {
+                Thread.onSpinWait();
+            }
+        }
+        return sealed;
+    }
+
+    void close() {
+        openSnapshots.decrementAndGet();
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().threadId() % STRIPES) * PADDING;
+    }
+}
+
+// Bank-wide totals kept current as postings are applied, so they can be read
+// without visiting any account or loan. Running totals are LongAdders. Daily
+// count and volume per TransactionType live in a ring of day buckets keyed by
+// UTC epoch day; a slot is replaced wholesale, by CAS, the first time a new
+// day reaches it. Nothing here takes a lock. Volumes are absolute amounts,
+// and a transfer is counted once, on its debit side.
+class BankAggregates {
+    static final BankAggregates DETACHED = new BankAggregates();
+    static final int DAYS = 64;
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    private static final int TYPE_COUNT = TransactionType.values().length;
+
+    private final LongAdder depositsHeld = new LongAdder();
+    private final LongAdder outstandingLoans = new LongAdder();
+    private final AtomicReferenceArray<DayBucket> days = new AtomicReferenceArray<>(DAYS);
+
+    private static final class DayBucket {
+        final long day;
+        final LongAdder[] counts = new LongAdder[TYPE_COUNT];
+        final LongAdder[] volumes = new LongAdder[TYPE_COUNT];
+
+        DayBucket(long day) {
+            this.day = day;
+            for (int t = 0; t < TYPE_COUNT; t++) {
+                counts[t] = new LongAdder();
+                volumes[t] = new LongAdder();
+            }
+        }
+    }
+
+    void balanceChanged(long delta) {
+        depositsHeld.add(delta);
+    }
+
+    void loanBalanceChanged(long delta) {
+        outstandingLoans.add(delta);
+    }
+
+    // Takes the signed amount as stored in the history. Postings older than
+    // the ring are dropped.
+    void recordPosting(TransactionType type, long amount, long timestamp) {
+        if (type == TransactionType.TRANSFER && amount > 0) {
+            return;
+        }
+        DayBucket bucket = bucket(Math.floorDiv(timestamp, MILLIS_PER_DAY));
+        if (bucket != null) {
+            bucket.counts[type.ordinal()].increment();
+            bucket.volumes[type.ordinal()].add(Math.abs(amount));
+        }
+    }
+
+    // Reloads a day's totals for postings that keep no history to rebuild
+    // them from, such as loan payments.
+    void restoreDaily(TransactionType type, long epochDay, long count, long volume) {
+        DayBucket bucket = bucket(epochDay);
+        if (bucket != null) {
+            bucket.counts[type.ordinal()].add(count);
+            bucket.volumes[type.ordinal()].add(volume);
+        }
+    }
+
+    private DayBucket bucket(long day) {
+        int slot = Math.floorMod(day, DAYS);
+        DayBucket bucket = days.get(slot);
+        while (bucket == null || bucket.day < day) {
+            DayBucket fresh = new DayBucket(day);
+            if (days.compareAndSet(slot, bucket, fresh)) {
+                return fresh;
+            }
+            bucket = days.get(slot);
+        }
+        return bucket.day == day ? bucket : null;
+    }
+
+    public long getDepositsHeld() {
+        return depositsHeld.sum();
+    }
+
+    public long getOutstandingLoans() {
+        return outstandingLoans.sum();
+    }
+
+    public static long epochDay(long timestamp) {
+        return Math.floorDiv(timestamp, MILLIS_PER_DAY);
+    }
+
+    // Zero for days that have left the ring or have had no postings.
+    public long getDailyCount(TransactionType type, long epochDay) {
+        DayBucket bucket = days.get(Math.floorMod(epochDay, DAYS));
+        return bucket != null && bucket.day == epochDay ? bucket.counts[type.ordinal()].sum() : 0;
+    }
+
+    public long getDailyVolume(TransactionType type, long epochDay) {
+        DayBucket bucket = days.get(Math.floorMod(epochDay, DAYS));
+        return bucket != null && bucket.day == epochDay ? bucket.volumes[type.ordinal()].sum() : 0;
+    }
+}
+
+// Limits on an account's outgoing postings (withdrawals and transfers out)
+// within a rolling window: at most maxPostings of them and at most maxAmount
+// in total.
+class VelocityLimits {
+    private final long windowMillis;
+    private final int maxPostings;
+    private final long maxAmount;
+
+    public VelocityLimits(long windowMillis, int maxPostings, long maxAmount) {
+        if (windowMillis <= 0 || maxPostings <= 0 || maxAmount <= 0) {
+            throw new IllegalArgumentException("Velocity limits must be positive");
+        }
+        this.windowMillis = windowMillis;
+        this.maxPostings = maxPostings;
+        this.maxAmount = maxAmount;
+    }
+
+    // Parses "maxPostings,maxAmount,windowSeconds", e.g. "10,5000.00,60".
+    public static VelocityLimits parse(String spec) {
+        String[] parts = spec.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected maxPostings,maxAmount,windowSeconds: " + spec);
+        }
+        return new VelocityLimits(new BigDecimal(parts[2].trim()).movePointRight(3).longValue(), Integer.parseInt(parts[0].trim()),
+                Money.toCents(new BigDecimal(parts[1].trim())));
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getMaxPostings() {
+        return maxPostings;
+    }
+
+    public long getMaxAmount() {
+        return maxAmount;
+    }
+}
+
+// The limits a bank currently enforces, shared by all of its accounts.
+class VelocityPolicy {
+    static final VelocityPolicy DISABLED = new VelocityPolicy();
+
+    private volatile VelocityLimits limits;
+
+    public VelocityLimits getLimits() {
+        return limits;
+    }
+
+    public void setLimits(VelocityLimits limits) {
+        this.limits = limits;
+    }
+}
+
+// One account's outgoing postings inside the window, in a ring sized by
+// maxPostings. Because the count is capped, the window can never hold more
+// live entries than that. Expired entries are dropped from the head as time
+// moves on, so each check is amortized O(1) and never looks at the history.
+// Callers hold the account lock.
+class VelocityWindow {
+    private final VelocityLimits limits;
+    private final long[] timestamps;
+    private final long[] amounts;
+    private int head;
+    private int size;
+    private long total;
+
+    VelocityWindow(VelocityLimits limits) {
+        this.limits = limits;
+        timestamps = new long[limits.getMaxPostings()];
+        amounts = new long[limits.getMaxPostings()];
+    }
+
+    VelocityLimits getLimits() {
+        return limits;
+    }
+
+    boolean allows(long amount, long timestamp) {
+        long cutoff = timestamp - limits.getWindowMillis();
+        while (size > 0 && timestamps[head] <= cutoff) {
+            total -= amounts[head];
+            head = head + 1 == timestamps.length ? 0 : head + 1;
+            size--;
+        }
+        return size < timestamps.length && amount <= limits.getMaxAmount() - total;
+    }
+
+    // Only call after allows() returned true for the same posting.
+    void record(long amount, long timestamp) {
+        int tail = head + size;
+        if (tail >= timestamps.length) {
+            tail -= timestamps.length;
+        }
+        timestamps[tail] = timestamp;
+        amounts[tail] = amount;
+        size++;
+        total += amount;
+    }
+}
+
+// One account balance as of an epoch. The newest version is updated in place
+// while its epoch is still open; older versions are kept only while a
+// snapshot may need them.
+class BalanceVersion {
+    final long epoch;
+    volatile long balance;
+    volatile BalanceVersion previous;
+
+    BalanceVersion(long epoch, long balance, BalanceVersion previous) {
+        this.epoch = epoch;
+        this.balance = balance;
+        this.previous = previous;
+    }
+}
+
+// Balances of every account at one sealed epoch.
+class BankSnapshot {
+    private final long epoch;
+    private final String[] accountNumbers;
+    private final long[] balances;
+    private final int size;
+    private final long totalBalance;
+
+    BankSnapshot(long epoch, String[] accountNumbers, long[] balances, int size) {
+        this.epoch = epoch;
+        this.accountNumbers = accountNumbers;
+        this.balances = balances;
+        this.size = size;
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += balances[i];
+        }
+        this.totalBalance = total;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getAccountNumber(int index) {
+        return accountNumbers[index];
+    }
+
+    public long getBalance(int index) {
+        return balances[index];
+    }
+
+    public long getTotalBalance() {
+        return totalBalance;
+    }
+}
+
+// A PIN stored as a salted PBKDF2 hash. The iteration count is kept with
+// each hash, so it can be raised later and old hashes still verify; a hash
+// below the bank's current count is redone at that count on the next
+// successful login.
+class Credentials {
+    static final int DEFAULT_ITERATIONS = 100_000;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] salt;
+    private final int iterations;
+    private final byte[] hash;
+
+    private Credentials(byte[] salt, int iterations, byte[] hash) {
+        this.salt = salt;
+        this.iterations = iterations;
+        this.hash = hash;
+    }
+
+    public static Credentials create(int pin, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new Credentials(salt, iterations, derive(pin, salt, iterations));
+    }
+
+    public boolean matches(int pin) {
+        return MessageDigest.isEqual(hash, derive(pin, salt, iterations));
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    private static byte[] derive(int pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(Integer.toString(pin).toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    public int encodedSize() {
+        return 2 + salt.length + 4 + hash.length;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(salt.length);
+        out.write(salt);
+        out.writeInt(iterations);
+        out.writeByte(hash.length);
+        out.write(hash);
+    }
+
+    public static Credentials read(DataInputStream in) throws IOException {
+        byte[] salt = new byte[in.readUnsignedByte()];
+        in.readFully(salt);
+        int iterations = in.readInt();
+        byte[] hash = new byte[in.readUnsignedByte()];
+        in.readFully(hash);
+        return new Credentials(salt, iterations, hash);
+    }
+
+    public void put(ByteBuffer buffer) {
+        buffer.put((byte) salt.length).put(salt).putInt(iterations).put((byte) hash.length).put(hash);
+    }
+
+    public static Credentials get(ByteBuffer buffer) {
+        byte[] salt = new byte[buffer.get() & 0xFF];
+        buffer.get(salt);
+        int iterations = buffer.getInt();
+        byte[] hash = new byte[buffer.get() & 0xFF];
+        buffer.get(hash);
+        return new Credentials(salt, iterations, hash);
+    }
+}
+
+class BankAccount {
+    static final long NOT_POSTED = -1;
+    static final long VELOCITY_LIMITED = -2;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private String accountNumber;
+    private String accountHolder;
+    private String accountType;
+    private volatile BalanceVersion version;
+    private volatile Credentials credentials;
+    private TransactionHistory transactionHistory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Journal journal;
+    private SnapshotClock clock = SnapshotClock.UNATTACHED;
+    private BankAggregates aggregates = BankAggregates.DETACHED;
+    private VelocityPolicy velocityPolicy = VelocityPolicy.DISABLED;
+    private VelocityWindow velocityWindow;
+
+    public BankAccount(String accountNumber, String accountHolder, String accountType, Credentials credentials) {
+        this.accountNumber = accountNumber;
+        this.accountHolder = accountHolder;
+        this.accountType = accountType;
+        this.version = new BalanceVersion(0, 0, null);
+        this.credentials = credentials;
+        transactionHistory = new TransactionHistory();
+    }
+
+    public List<Transaction> getTransactionHistory() {
+        return transactionHistory.page(Long.MIN_VALUE, Long.MAX_VALUE, null, 0, Integer.MAX_VALUE).getEntries();
+    }
+
+    // Lock-free; safe to call while postings are being appended.
+    public HistoryPage getHistoryPage(long fromTimestamp, long toTimestamp, TransactionType type, long cursor, int limit) {
+        return transactionHistory.page(fromTimestamp, toTimestamp, type, cursor, limit);
+    }
+
+    static long nextSequence() {
+        return SEQUENCE.incrementAndGet();
+    }
+
+    static long currentSequence() {
+        return SEQUENCE.get();
+    }
+
+    static void advanceSequence(long sequence) {
+        SEQUENCE.accumulateAndGet(sequence, Math::max);
+    }
+
+    ReentrantLock lock() {
+        return lock;
+    }
+
+    Journal journal() {
+        return journal;
+    }
+
+    void attachJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    TransactionHistory history() {
+        return transactionHistory;
+    }
+
+    void restoreBalance(long balance) {
+        version.balance = balance;
+    }
+
+    SnapshotClock clock() {
+        return clock;
+    }
+
+    // Binds the account to its bank's clock; the account exists from the given epoch on.
+    void attachClock(SnapshotClock clock, long epoch) {
+        this.clock = clock;
+        this.version = new BalanceVersion(epoch, version.balance, null);
+    }
+
+    // Adds the account's current balance to its bank's totals; later postings keep them current.
+    void attachAggregates(BankAggregates aggregates) {
+        this.aggregates = aggregates;
+        aggregates.balanceChanged(version.balance);
+    }
+
+    void attachVelocityPolicy(VelocityPolicy velocityPolicy) {
+        this.velocityPolicy = velocityPolicy;
+    }
+
+    // Balance as of a sealed snapshot epoch, or null if the account did not exist yet.
+    BalanceVersion versionAt(long epoch) {
+        BalanceVersion v = version;
+        while (v != null && v.epoch > epoch) {
+            v = v.previous;
+        }
+        return v;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    public String getAccountHolder() {
+        return accountHolder;
+    }
+
+    public String getAccountType() {
+        return accountType;
+    }
+
+    // Never blocks: reads the latest committed version.
+    public long getBalance() {
+        return version.balance;
+    }
+
+    // Deliberately slow: costs a full hash at the credentials' iteration count.
+    // A successful check below minIterations upgrades the stored hash.
+    public boolean verifyPin(int pin, int minIterations) {
+        Credentials current = credentials;
+        if (!current.matches(pin)) {
+            return false;
+        }
+        if (current.getIterations() < minIterations) {
+            upgradeCredentials(current, Credentials.create(pin, minIterations));
+        }
+        return true;
+    }
+
+    // Journaled, so the stronger hash survives a restart without waiting for
+    // a checkpoint. A concurrent login may already have upgraded it.
+    private void upgradeCredentials(Credentials expected, Credentials upgraded) {
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        try {
+            lock.lock();
+            try {
+                if (credentials != expected) {
+                    return;
+                }
+                credentials = upgraded;
+                if (journal != null) {
+                    lsn = journal.logUpdateCredentials(accountNumber, upgraded);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        awaitDurable(lsn);
+    }
+
+    Credentials getCredentials() {
+        return credentials;
+    }
+
+    void restoreCredentials(Credentials credentials) {
+        this.credentials = credentials;
+    }
+
+    // Callers must hold this account's lock and be inside clock epoch.
+    void credit(long amount, TransactionType type, long sequence, long timestamp, long epoch) {
+        setBalance(epoch, version.balance + amount);
+        recordTransaction(type, amount, timestamp, sequence);
+        aggregates.balanceChanged(amount);
+        aggregates.recordPosting(type, amount, timestamp);
+    }
+
+    // Callers must hold this account's lock and be inside clock epoch.
+    // Debits are stored as negative amounts.
+    boolean debit(long amount, TransactionType type, long sequence, long timestamp, long epoch) {
+        long balance = version.balance;
+        if (amount > balance) {
+            return false;
+        }
+        setBalance(epoch, balance - amount);
+        recordTransaction(type, -amount, timestamp, sequence);
+        aggregates.balanceChanged(-amount);
+        aggregates.recordPosting(type, -amount, timestamp);
+        return true;
+    }
+
+    // Only credit() and debit() append history, so every entry moves the balance.
+    private void recordTransaction(TransactionType type, long amount, long timestamp, long sequence) {
+        transactionHistory.append(type, amount, timestamp, sequence);
+    }
+
+    // An outgoing debit, checked against the velocity limits before it commits.
+    // Replay uses debit() directly, since the journal only holds accepted postings.
+    // Callers must hold this account's lock and be inside clock epoch.
+    PostingStatus tryDebit(long amount, TransactionType type, long sequence, long timestamp, long epoch) {
+        VelocityLimits limits = velocityPolicy.getLimits();
+        if (limits == null) {
+            return debit(amount, type, sequence, timestamp, epoch) ? PostingStatus.OK : PostingStatus.INSUFFICIENT_FUNDS;
+        }
+        if (velocityWindow == null || velocityWindow.getLimits() != limits) {
+            velocityWindow = new VelocityWindow(limits);
+        }
+        if (!velocityWindow.allows(amount, timestamp)) {
+            return PostingStatus.VELOCITY_LIMIT;
+        }
+        if (!debit(amount, type, sequence, timestamp, epoch)) {
+            return PostingStatus.INSUFFICIENT_FUNDS;
+        }
+        velocityWindow.record(amount, timestamp);
+        return PostingStatus.OK;
+    }
+
+    // Maps a rejected tryDebit() to the value the post* methods return instead of an LSN.
+    static long rejected(PostingStatus status) {
+        return status == PostingStatus.VELOCITY_LIMIT ? VELOCITY_LIMITED : NOT_POSTED;
+    }
+
+    // The status of a post* result: OK for an LSN, or why nothing was posted.
+    static PostingStatus statusOf(long lsn) {
+        if (lsn == NOT_POSTED) {
+            return PostingStatus.INSUFFICIENT_FUNDS;
+        }
+        return lsn == VELOCITY_LIMITED ? PostingStatus.VELOCITY_LIMIT : PostingStatus.OK;
+    }
+
+    private void setBalance(long epoch, long balance) {
+        BalanceVersion head = version;
+        if (head.epoch == epoch) {
+            head.balance = balance;
+            if (head.previous != null && !clock.hasOpenSnapshots()) {
+                head.previous = null;
+            }
+        } else {
+            version = new BalanceVersion(epoch, balance, clock.hasOpenSnapshots() ? head : null);
+        }
+    }
+
+    // The posting is journaled while the account lock is held, so the log
+    // order matches the apply order, and made durable after the lock is released.
+    boolean applyDeposit(long amount) {
+        if (amount <= 0) {
+            return false;
+        }
+        awaitDurable(postDeposit(amount));
+        return true;
+    }
+
+    PostingStatus applyWithdrawal(long amount) {
+        if (amount <= 0) {
+            return PostingStatus.INVALID_AMOUNT;
+        }
+        long lsn = postWithdrawal(amount);
+        awaitDurable(lsn);
+        return statusOf(lsn);
+    }
+
+    void awaitDurable(long lsn) {
+        if (journal != null && lsn > 0) {
+            journal.awaitDurable(lsn);
+        }
+    }
+
+    // Sending half of a cross-shard transfer: debits this account and journals
+    // the escrow. Returns the journal LSN, or NOT_POSTED / VELOCITY_LIMITED.
+    long postTransferOut(long transferId, String toAccount, long amount) {
+        long lsn = 0;
+        lock.lock();
+        long epoch = clock.enter();
+        try {
+            long sequence = nextSequence();
+            long timestamp = System.currentTimeMillis();
+            PostingStatus status = tryDebit(amount, TransactionType.TRANSFER, sequence, timestamp, epoch);
+            if (status != PostingStatus.OK) {
+                return rejected(status);
+            }
+            if (journal != null) {
+                lsn = journal.logTransferOut(transferId, accountNumber, toAccount, amount, timestamp, sequence);
+            }
+        } finally {
+            clock.exit(epoch);
+            lock.unlock();
+        }
+        return lsn;
+    }
+
+    // Receiving half of a cross-shard transfer.
+    long postTransferIn(long transferId, long amount) {
+        long lsn = 0;
+        lock.lock();
+        long epoch = clock.enter();
+        try {
+            long sequence = nextSequence();
+            long timestamp = System.currentTimeMillis();
+            credit(amount, TransactionType.TRANSFER, sequence, timestamp, epoch);
+            if (journal != null) {
+                lsn = journal.logTransferIn(transferId, accountNumber, amount, timestamp, sequence);
+            }
+        } finally {
+            clock.exit(epoch);
+            lock.unlock();
+        }
+        return lsn;
+    }
+
+    // Applies and journals a deposit of a positive amount without waiting for
+    // the journal flush. Returns the journal LSN, or 0 when the bank is not durable.
+    long postDeposit(long amount) {
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        try {
+            lock.lock();
+            long epoch = clock.enter();
+            try {
+                long sequence = nextSequence();
+                long timestamp = System.currentTimeMillis();
+                credit(amount, TransactionType.DEPOSIT, sequence, timestamp, epoch);
+                if (journal != null) {
+                    lsn = journal.logDeposit(accountNumber, amount, timestamp, sequence);
+                }
+            } finally {
+                clock.exit(epoch);
+                lock.unlock();
+            }
+        } finally {
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        return lsn;
+    }
+
+    // Like postDeposit, but returns NOT_POSTED when funds are insufficient and
+    // VELOCITY_LIMITED when the account is over its velocity limits.
+    long postWithdrawal(long amount) {
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        try {
+            lock.lock();
+            long epoch = clock.enter();
+            try {
+                long sequence = nextSequence();
+                long timestamp = System.currentTimeMillis();
+                PostingStatus status = tryDebit(amount, TransactionType.WITHDRAWAL, sequence, timestamp, epoch);
+                if (status != PostingStatus.OK) {
+                    return rejected(status);
+                }
+                if (journal != null) {
+                    lsn = journal.logWithdrawal(accountNumber, amount, timestamp, sequence);
+                }
+            } finally {
+                clock.exit(epoch);
+                lock.unlock();
+            }
+        } finally {
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        return lsn;
+    }
+
+    // Postings are not authenticated here; BankService checks the caller's
+    // session before it reaches the account.
+    public PostingStatus deposit(long amount) {
+        long start = System.nanoTime();
+        PostingStatus status = checkedDeposit(amount);
+        BankMetrics.GLOBAL.record(BankOperation.DEPOSIT, status, start);
+        return status;
+    }
+
+    public PostingStatus withdraw(long amount) {
+        long start = System.nanoTime();
+        PostingStatus status = checkedWithdrawal(amount);
+        BankMetrics.GLOBAL.record(BankOperation.WITHDRAWAL, status, start);
+        return status;
+    }
+
+    public PostingStatus transfer(BankAccount recipient, long amount) {
+        long start = System.nanoTime();
+        PostingStatus status = checkedTransfer(recipient, amount);
+        BankMetrics.GLOBAL.record(BankOperation.TRANSFER, status, start);
+        return status;
+    }
+
+    private PostingStatus checkedDeposit(long amount) {
+        return applyDeposit(amount) ? PostingStatus.OK : PostingStatus.INVALID_AMOUNT;
+    }
+
+    private PostingStatus checkedWithdrawal(long amount) {
+        if (amount <= 0) {
+            return PostingStatus.INVALID_AMOUNT;
+        }
+        return applyWithdrawal(amount);
+    }
+
+    private PostingStatus checkedTransfer(BankAccount recipient, long amount) {
+        if (recipient == this) {
+            return PostingStatus.SAME_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return PostingStatus.INVALID_AMOUNT;
+        }
+        return TransferEngine.transfer(this, recipient, amount);
+    }
+}
+
+class TransferEngine {
+
+    // Both account locks are taken in account-number order, so two opposing
+    // transfers can never wait on each other.
+    public static PostingStatus transfer(BankAccount from, BankAccount to, long amount) {
+        if (from == to) {
+            return PostingStatus.SAME_ACCOUNT;
+        }
+        if (amount <= 0) {
+            return PostingStatus.INVALID_AMOUNT;
+        }
+        long lsn = post(from, to, amount);
+        from.awaitDurable(lsn);
+        return BankAccount.statusOf(lsn);
+    }
+
+    // Moves a positive amount between two distinct accounts without waiting for
+    // the journal flush. Returns the journal LSN, or NOT_POSTED on insufficient
+    // funds and VELOCITY_LIMITED when the sender is over its velocity limits.
+    static long post(BankAccount from, BankAccount to, long amount) {
+        BankAccount first = from;
+        BankAccount second = to;
+        if (from.getAccountNumber().compareTo(to.getAccountNumber()) > 0) {
+            first = to;
+            second = from;
+        }
+        Journal journal = from.journal();
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        try {
+            first.lock().lock();
+            try {
+                second.lock().lock();
+                SnapshotClock clock = from.clock();
+                long epoch = clock.enter();
+                try {
+                    long sequence = BankAccount.nextSequence();
+                    long timestamp = System.currentTimeMillis();
+                    PostingStatus status = from.tryDebit(amount, TransactionType.TRANSFER, sequence, timestamp, epoch);
+                    if (status != PostingStatus.OK) {
+                        return BankAccount.rejected(status);
+                    }
+                    to.credit(amount, TransactionType.TRANSFER, sequence, timestamp, epoch);
+                    if (journal != null) {
+                        lsn = journal.logTransfer(from.getAccountNumber(), to.getAccountNumber(), amount, timestamp, sequence);
+                    }
+                } finally {
+                    clock.exit(epoch);
+                    second.lock().unlock();
+                }
+            } finally {
+                first.lock().unlock();
+            }
+        } finally {
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        return lsn;
+    }
+}
+
+class TransferStressCheck {
+
+    // Runs random transfers between a small set of accounts from many threads
+    // while another thread takes point-in-time snapshots, and reports whether
+    // the total balance was conserved in every snapshot and at the end.
+    public static boolean run(int accountCount, int threadCount, int transfersPerThread) throws InterruptedException {
+        Bank bank = new Bank();
+        bank.setPinIterations(1);
+        BankAccount[] accounts = new BankAccount[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            String accountNumber = String.format("ACC%06d", i);
+            bank.createAccount(accountNumber, "Stress " + i, "Checking", 0);
+            accounts[i] = bank.findAccount(accountNumber);
+            accounts[i].applyDeposit(100_000);
+        }
+        long expected = bank.totalBalance();
+
+        Thread[] threads = new Thread[threadCount];
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < transfersPerThread; i++) {
+                    BankAccount from = accounts[random.nextInt(accountCount)];
+                    BankAccount to = accounts[random.nextInt(accountCount)];
+                    TransferEngine.transfer(from, to, 1 + random.nextInt(5_000));
+                }
+            });
+            threads[t].start();
+        }
+        long snapshots = 0;
+        long inconsistentSnapshots = 0;
+        while (isAnyAlive(threads)) {
+            if (bank.snapshot().getTotalBalance() != expected) {
+                inconsistentSnapshots++;
+            }
+            snapshots++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long actual = bank.totalBalance();
+        long transfers = (long) threadCount * transfersPerThread;
+        System.out.println("Transfers: " + transfers + ", threads: " + threadCount + ", accounts: " + accountCount);
+        System.out.println("Throughput: " + (long) (transfers / (elapsed / 1e9)) + " transfers/sec");
+        System.out.println("Snapshots taken during the run: " + snapshots + ", inconsistent: " + inconsistentSnapshots);
+        System.out.println("Expected total: $" + Money.format(expected) + ", actual total: $" + Money.format(actual));
+        return expected == actual && inconsistentSnapshots == 0;
+    }
+
+    // Same idea over a ShardedBank: client virtual threads issue transfers
+    // between random accounts, most of which cross shards, while the total
+    // is sampled; it is checked again once every transfer has settled. With a
+    // directory the shards journal there, so completions wait on group commits.
+    public static boolean runSharded(Path directory, int shardCount, int accountCount, int clientCount,
+            int transfersPerClient) throws InterruptedException, IOException {
+        int threadsPerShard = Math.max(1, Runtime.getRuntime().availableProcessors() / shardCount);
+        try (ShardedBank bank = directory == null ? new ShardedBank(shardCount, threadsPerShard)
+                : new ShardedBank(directory, shardCount, threadsPerShard)) {
+            bank.setPinIterations(1);
+            String[] numbers = new String[accountCount];
+            for (int i = 0; i < accountCount; i++) {
+                numbers[i] = String.format("ACC%06d", i);
+                bank.createAccount(numbers[i], "Stress " + i, "Checking", 0).join();
+                bank.deposit(numbers[i], 100_000).join();
+            }
+            long expected = bank.totalBalance();
+
+            AtomicLong completed = new AtomicLong();
+            CountDownLatch finished = new CountDownLatch(clientCount);
+            long samples = 0;
+            long inconsistentSamples = 0;
+            long start = System.nanoTime();
+            try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int c = 0; c < clientCount; c++) {
+                    clients.submit(() -> {
+                        try {
+                            ThreadLocalRandom random = ThreadLocalRandom.current();
+                            for (int i = 0; i < transfersPerClient; i++) {
+                                String from = numbers[random.nextInt(accountCount)];
+                                String to = numbers[random.nextInt(accountCount)];
+                                if (bank.transfer(from, to, 1 + random.nextInt(5_000)).join() == PostingStatus.OK) {
+                                    completed.incrementAndGet();
+                                }
+                            }
+                        } finally {
+                            finished.countDown();
+                        }
+                    });
+                }
+                while (!finished.await(10, TimeUnit.MILLISECONDS)) {
+                    if (bank.totalBalance() != expected) {
+                        inconsistentSamples++;
+                    }
+                    samples++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            bank.awaitSettled();
+
+            long actual = bank.totalBalance();
+            long transfers = (long) clientCount * transfersPerClient;
+            System.out.println("Transfers: " + transfers + " (" + completed.get() + " posted), clients: " + clientCount
+                    + ", shards: " + shardCount + ", accounts: " + accountCount);
+            System.out.println("Throughput: " + (long) (transfers / (elapsed / 1e9)) + " transfers/sec");
+            System.out.println("Totals sampled during the run: " + samples + ", inconsistent: " + inconsistentSamples);
+            System.out.println("Expected total: $" + Money.format(expected) + ", actual total: $" + Money.format(actual));
+            return expected == actual && inconsistentSamples == 0;
+        }
+    }
+
+    // Posts a generated file through a partitioned BatchPoster and again
+    // through a single partition, each into a fresh bank, and reports
+    // whether every line got the same status and every account ended with
+    // the same balance. Most transfers are followed by a withdrawal of the
+    // whole amount from the recipient, which only succeeds if the credit
+    // was applied first.
+    public static boolean runBatchReplay(int accountCount, int lineCount, int partitions)
+            throws InterruptedException, IOException {
+        Path input = Files.createTempFile("batch-replay", ".csv");
+        Path parallelResults = Files.createTempFile("batch-replay", ".parallel");
+        Path serialResults = Files.createTempFile("batch-replay", ".serial");
+        try {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try (BufferedWriter out = Files.newBufferedWriter(input)) {
+                for (int i = 0; i < lineCount; i++) {
+                    String from = String.format("ACC%06d", random.nextInt(accountCount));
+                    String to = String.format("ACC%06d", random.nextInt(accountCount));
+                    String amount = Money.format(1 + random.nextInt(50_000));
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            out.write("DEPOSIT," + from + "," + amount + "\n");
+                            break;
+                        case 1:
+                            out.write("WITHDRAWAL," + from + "," + amount + "\n");
+                            break;
+                        default:
+                            out.write("TRANSFER," + from + "," + amount + "," + to + "\n");
+                            out.write("WITHDRAWAL," + to + "," + amount + "\n");
+                    }
+                }
+            }
+            Bank parallel = batchReplayBank(accountCount);
+            BatchPoster poster = new BatchPoster(parallel, partitions);
+            poster.run(input, parallelResults);
+            Bank serial = batchReplayBank(accountCount);
+            new BatchPoster(serial, 1).run(input, serialResults);
+
+            Map<String, String> expected = new HashMap<>();
+            for (String line : Files.readAllLines(serialResults)) {
+                expected.put(line.substring(0, line.indexOf(',')), line);
+            }
+            long statusMismatches = 0;
+            for (String line : Files.readAllLines(parallelResults)) {
+                if (!line.equals(expected.remove(line.substring(0, line.indexOf(','))))) {
+                    statusMismatches++;
+                }
+            }
+            statusMismatches += expected.size();
+            long balanceMismatches = 0;
+            for (int i = 0; i < accountCount; i++) {
+                String number = String.format("ACC%06d", i);
+                if (parallel.findAccount(number).getBalance() != serial.findAccount(number).getBalance()) {
+                    balanceMismatches++;
+                }
+            }
+            System.out.println("Lines: " + poster.getPostings() + ", partitions: " + partitions + ", accounts: " + accountCount);
+            System.out.println("Throughput: " + (long) poster.getPostingsPerSecond() + " postings/sec");
+            System.out.println("Status mismatches: " + statusMismatches + ", balance mismatches: " + balanceMismatches);
+            return statusMismatches == 0 && balanceMismatches == 0;
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(parallelResults);
+            Files.deleteIfExists(serialResults);
+        }
+    }
+
+    private static Bank batchReplayBank(int accountCount) {
+        Bank bank = new Bank();
+        bank.setPinIterations(1);
+        for (int i = 0; i < accountCount; i++) {
+            bank.createAccount(String.format("ACC%06d", i), "Replay " + i, "Checking", 0);
+            bank.findAccount(String.format("ACC%06d", i)).applyDeposit(10_000);
+        }
+        return bank;
+    }
+
+    private static boolean isAnyAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+class Transaction {
+    private TransactionType type;
+    private long amount;
+    private long timestamp;
+    private long sequence;
+
+    public Transaction(TransactionType type, long amount, long timestamp, long sequence) {
+        this.type = type;
+        this.amount = amount;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+    }
+
+    public TransactionType getType() {
+        return type;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+}
+
+// Primitive, segmented storage for every loan's balance, so portfolio-wide
+// jobs can sweep plain arrays instead of Loan objects. Slots are handed out
+// once and never reused; segments are appended without copying existing data.
+// Payments hold the shared side of accrualLock, accrual the exclusive side.
+// A loan's remaining balance includes its accrued interest; accrued holds the
+// part of it not yet paid, which payments consume before principal.
+class LoanLedger {
+    static final int SEGMENT_BITS = 16;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final ReentrantReadWriteLock accrualLock = new ReentrantReadWriteLock();
+    private volatile long[][] remaining = new long[0][];
+    private volatile double[][] rates = new double[0][];
+    private volatile long[][] accrued = new long[0][];
+    private volatile int count;
+    private final BankAggregates aggregates;
+
+    LoanLedger(BankAggregates aggregates) {
+        this.aggregates = aggregates;
+    }
+
+    BankAggregates aggregates() {
+        return aggregates;
+    }
+
+    synchronized int add(long amount, double interestRate) {
+        int slot = count;
+        int segment = slot >>> SEGMENT_BITS;
+        if (segment == remaining.length) {
+            long[][] grownRemaining = Arrays.copyOf(remaining, segment + 1);
+            double[][] grownRates = Arrays.copyOf(rates, segment + 1);
+            long[][] grownAccrued = Arrays.copyOf(accrued, segment + 1);
+            grownRemaining[segment] = new long[SEGMENT_SIZE];
+            grownRates[segment] = new double[SEGMENT_SIZE];
+            grownAccrued[segment] = new long[SEGMENT_SIZE];
+            remaining = grownRemaining;
+            rates = grownRates;
+            accrued = grownAccrued;
+        }
+        remaining[segment][slot & SEGMENT_MASK] = amount;
+        rates[segment][slot & SEGMENT_MASK] = interestRate;
+        count = slot + 1;
+        aggregates.loanBalanceChanged(amount);
+        return slot;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long remaining(int slot) {
+        return remaining[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+    }
+
+    void setRemaining(int slot, long amount) {
+        long[] segment = remaining[slot >>> SEGMENT_BITS];
+        aggregates.loanBalanceChanged(amount - segment[slot & SEGMENT_MASK]);
+        segment[slot & SEGMENT_MASK] = amount;
+    }
+
+    long accruedInterest(int slot) {
+        return accrued[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK];
+    }
+
+    void setAccruedInterest(int slot, long amount) {
+        accrued[slot >>> SEGMENT_BITS][slot & SEGMENT_MASK] = amount;
+    }
+
+    ReentrantReadWriteLock accrualLock() {
+        return accrualLock;
+    }
+
+    // Simple interest on a balance for a fraction of a year. Accrual and
+    // AmortizationSchedule both go through here, so they round alike.
+    static long interest(long balance, double annualRate, double years) {
+        return Math.round(balance * (annualRate / 100) * years);
+    }
+
+    // Adds days of simple interest at each loan's annual rate to every open
+    // balance. Callers must hold the exclusive side of accrualLock.
+    AccrualResult accrue(int days, ForkJoinPool pool) {
+        return accrue(days / 365.0, pool);
+    }
+
+    AccrualResult accrue(double years, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int loans = count;
+        int segments = (loans + SEGMENT_MASK) >>> SEGMENT_BITS;
+        long interest = pool.invoke(new AccrualTask(remaining, rates, accrued, 0, segments, loans, years));
+        aggregates.loanBalanceChanged(interest);
+        return new AccrualResult(loans, interest, System.nanoTime() - start);
+    }
+
+    // Splits the sweep by whole segments; each leaf walks one segment's arrays.
+    private static class AccrualTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final long[][] remaining;
+        private final double[][] rates;
+        private final long[][] accrued;
+        private final int fromSegment;
+        private final int toSegment;
+        private final int loans;
+        private final double years;
+
+        AccrualTask(long[][] remaining, double[][] rates, long[][] accrued, int fromSegment, int toSegment, int loans, double years) {
+            this.remaining = remaining;
+            this.rates = rates;
+            this.accrued = accrued;
+            this.fromSegment = fromSegment;
+            this.toSegment = toSegment;
+            this.loans = loans;
+            this.years = years;
+        }
+
+        @Override
+        protected Long compute() {
+            if (toSegment - fromSegment > 1) {
+                int mid = (fromSegment + toSegment) >>> 1;
+                AccrualTask left = new AccrualTask(remaining, rates, accrued, fromSegment, mid, loans, years);
+                left.fork();
+                long right = new AccrualTask(remaining, rates, accrued, mid, toSegment, loans, years).compute();
+                return right + left.join();
+            }
+            if (fromSegment == toSegment) {
+                return 0L;
+            }
+            long[] balances = remaining[fromSegment];
+            double[] annualRates = rates[fromSegment];
+            long[] accruedInterest = accrued[fromSegment];
+            int length = Math.min(SEGMENT_SIZE, loans - (fromSegment << SEGMENT_BITS));
+            long total = 0;
+            for (int i = 0; i < length; i++) {
+                long balance = balances[i];
+                if (balance > 0) {
+                    long interest = interest(balance, annualRates[i], years);
+                    balances[i] = balance + interest;
+                    accruedInterest[i] += interest;
+                    total += interest;
+                }
+            }
+            return total;
+        }
+    }
+}
+
+class AccrualResult {
+    private final int loans;
+    private final long totalInterest;
+    private final long elapsedNanos;
+
+    AccrualResult(int loans, long totalInterest, long elapsedNanos) {
+        this.loans = loans;
+        this.totalInterest = totalInterest;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getLoans() {
+        return loans;
+    }
+
+    public long getTotalInterest() {
+        return totalInterest;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getLoansPerSecond() {
+        return elapsedNanos == 0 ? 0 : loans / (elapsedNanos / 1e9);
+    }
+}
+
+// Fixed-payment monthly schedule for a balance, held as parallel cent arrays.
+class AmortizationSchedule {
+    private final long[] payments;
+    private final long[] interest;
+    private final long[] principal;
+    private final long[] balances;
+
+    private AmortizationSchedule(int months) {
+        payments = new long[months];
+        interest = new long[months];
+        principal = new long[months];
+        balances = new long[months];
+    }
+
+    public static AmortizationSchedule generate(long balance, double annualRate, int months) {
+        if (months <= 0) {
+            throw new IllegalArgumentException("months must be positive");
+        }
+        AmortizationSchedule schedule = new AmortizationSchedule(months);
+        double monthlyRate = annualRate / 100 / 12;
+        long payment = monthlyRate == 0
+                ? (balance + months - 1) / months
+                : Math.round(balance * monthlyRate / (1 - Math.pow(1 + monthlyRate, -months)));
+        for (int m = 0; m < months; m++) {
+            long monthInterest = LoanLedger.interest(balance, annualRate, 1.0 / 12);
+            long monthPrincipal = m == months - 1 ? balance : Math.min(balance, payment - monthInterest);
+            balance -= monthPrincipal;
+            schedule.payments[m] = monthInterest + monthPrincipal;
+            schedule.interest[m] = monthInterest;
+            schedule.principal[m] = monthPrincipal;
+            schedule.balances[m] = balance;
+        }
+        return schedule;
+    }
+
+    public int getMonths() {
+        return payments.length;
+    }
+
+    public long getPayment(int month) {
+        return payments[month];
+    }
+
+    public long getInterest(int month) {
+        return interest[month];
+    }
+
+    public long getPrincipal(int month) {
+        return principal[month];
+    }
+
+    public long getBalance(int month) {
+        return balances[month];
+    }
+
+    public long getTotalInterest() {
+        long total = 0;
+        for (long monthInterest : interest) {
+            total += monthInterest;
+        }
+        return total;
+    }
+}
+
+class Loan {
+    private String loanID;
+    private String borrower;
+    private long loanAmount;
+    private double interestRate;
+    private final LoanLedger ledger;
+    private final int slot;
+    private Journal journal;
+
+    public Loan(String loanID, String borrower, long loanAmount, double interestRate, LoanLedger ledger) {
+        this.loanID = loanID;
+        this.borrower = borrower;
+        this.loanAmount = loanAmount;
+        this.interestRate = interestRate;
+        this.ledger = ledger;
+        this.slot = ledger.add(loanAmount, interestRate);
+    }
+
+    public String getLoanID() {
+        return loanID;
+    }
+
+    public String getBorrower() {
+        return borrower;
+    }
+
+    public long getLoanAmount() {
+        return loanAmount;
+    }
+
+    public double getInterestRate() {
+        return interestRate;
+    }
+
+    public long getRemainingAmount() {
+        return ledger.remaining(slot);
+    }
+
+    public long getAccruedInterest() {
+        return ledger.accruedInterest(slot);
+    }
+
+    void attachJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    void restoreRemainingAmount(long remainingAmount, long accruedInterest) {
+        ledger.setRemaining(slot, remainingAmount);
+        ledger.setAccruedInterest(slot, accruedInterest);
+    }
+
+    public AmortizationSchedule amortizationSchedule(int months) {
+        return AmortizationSchedule.generate(getRemainingAmount(), interestRate, months);
+    }
+
+    // Applies the payment if it fits within the remaining balance. Interest is
+    // charged only by accrual; the payment pays off accrued interest first.
+    synchronized boolean settlePayment(long amount) {
+        long remainingAmount = ledger.remaining(slot);
+        if (amount > remainingAmount) {
+            return false;
+        }
+        long accruedInterest = ledger.accruedInterest(slot);
+        ledger.setRemaining(slot, remainingAmount - amount);
+        ledger.setAccruedInterest(slot, accruedInterest - Math.min(amount, accruedInterest));
+        return true;
+    }
+
+    public PostingStatus makePayment(long amount) {
+        long start = System.nanoTime();
+        PostingStatus status = settle(amount);
+        BankMetrics.GLOBAL.record(BankOperation.LOAN_PAYMENT, status, start);
+        return status;
+    }
+
+    private PostingStatus settle(long amount) {
+        if (amount <= 0) {
+            return PostingStatus.INVALID_AMOUNT;
+        }
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        ledger.accrualLock().readLock().lock();
+        try {
+            synchronized (this) {
+                if (ledger.remaining(slot) <= 0) {
+                    return PostingStatus.LOAN_PAID_OFF;
+                }
+                if (!settlePayment(amount)) {
+                    return PostingStatus.PAYMENT_EXCEEDS_BALANCE;
+                }
+                long timestamp = System.currentTimeMillis();
+                ledger.aggregates().recordPosting(TransactionType.LOAN_PAYMENT, amount, timestamp);
+                if (journal != null) {
+                    lsn = journal.logLoanPayment(loanID, amount, timestamp);
+                }
+            }
+        } finally {
+            ledger.accrualLock().readLock().unlock();
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        if (journal != null) {
+            journal.awaitDurable(lsn);
+        }
+        return PostingStatus.OK;
+    }
+}
+
+class LoanInterestCheck {
+
+    // Accrues a month of interest at a time on a single loan and pays the
+    // schedule's payment, and reports whether the loan's accrued interest and
+    // remaining balance track the amortization schedule month by month.
+    public static boolean run(long balance, double annualRate, int months) {
+        LoanLedger ledger = new LoanLedger(new BankAggregates());
+        Loan loan = new Loan("CHECK", "Check", balance, annualRate, ledger);
+        AmortizationSchedule schedule = loan.amortizationSchedule(months);
+        for (int m = 0; m < months; m++) {
+            ledger.accrualLock().writeLock().lock();
+            try {
+                ledger.accrue(1.0 / 12, ForkJoinPool.commonPool());
+            } finally {
+                ledger.accrualLock().writeLock().unlock();
+            }
+            if (loan.getAccruedInterest() != schedule.getInterest(m)) {
+                System.out.println("Month " + (m + 1) + ": accrued $" + Money.format(loan.getAccruedInterest())
+                        + ", schedule $" + Money.format(schedule.getInterest(m)) + ".");
+                return false;
+            }
+            // Rounding can pay a long schedule off early; its last payments are then zero.
+            long payment = schedule.getPayment(m);
+            if (payment > 0 && loan.makePayment(payment) != PostingStatus.OK
+                    || loan.getRemainingAmount() != schedule.getBalance(m) || loan.getAccruedInterest() != 0) {
+                System.out.println("Month " + (m + 1) + ": balance $" + Money.format(loan.getRemainingAmount())
+                        + ", schedule $" + Money.format(schedule.getBalance(m)) + ".");
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// Append-only, checksummed operation log. Each record is
+// [length][crc32][lsn][op][payload], where length and crc cover everything
+// after the crc. Appends go to an in-memory buffer; a single writer thread
+// flushes whatever has accumulated and fsyncs once for the whole batch.
+class Journal implements AutoCloseable {
+    static final byte CREATE_ACCOUNT = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAWAL = 3;
+    static final byte TRANSFER = 4;
+    static final byte APPLY_LOAN = 5;
+    static final byte LOAN_PAYMENT = 6;
+    static final byte INTEREST_ACCRUAL = 7;
+    static final byte TRANSFER_OUT = 8;
+    static final byte TRANSFER_IN = 9;
+    static final byte TRANSFER_SETTLED = 10;
+    static final byte UPDATE_CREDENTIALS = 11;
+
+    private static final int HEADER_SIZE = 8;
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+    interface Replayer {
+        void apply(byte op, ByteBuffer record);
+    }
+
+    private final FileChannel channel;
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final CRC32 crc = new CRC32();
+    private final Thread writer;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private long nextLsn;
+    private long durableLsn;
+    private long appendedSinceCheckpoint;
+    private final TreeMap<Long, CompletableFuture<Void>> durableWaiters = new TreeMap<>();
+    private IOException failure;
+    private boolean closed;
+
+    public Journal(Path file, long lastLsn) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        nextLsn = lastLsn + 1;
+        durableLsn = lastLsn;
+        writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Mutating operations hold this shared lock while they apply and append,
+    // so a checkpoint can briefly exclude them all and capture a consistent state.
+    public void beginOperation() {
+        checkpointLock.readLock().lock();
+    }
+
+    public void endOperation() {
+        checkpointLock.readLock().unlock();
+    }
+
+    public synchronized long logCreateAccount(String accountNumber, String accountHolder, String accountType,
+            Credentials credentials) {
+        byte[] number = utf8(accountNumber);
+        byte[] holder = utf8(accountHolder);
+        byte[] type = utf8(accountType);
+        int start = begin(CREATE_ACCOUNT, 6 + number.length + holder.length + type.length + credentials.encodedSize());
+        putString(number);
+        putString(holder);
+        putString(type);
+        credentials.put(pending);
+        return finish(start);
+    }
+
+    public synchronized long logUpdateCredentials(String accountNumber, Credentials credentials) {
+        byte[] number = utf8(accountNumber);
+        int start = begin(UPDATE_CREDENTIALS, 2 + number.length + credentials.encodedSize());
+        putString(number);
+        credentials.put(pending);
+        return finish(start);
+    }
+
+    public synchronized long logDeposit(String accountNumber, long amount, long timestamp, long sequence) {
+        return logPosting(DEPOSIT, accountNumber, amount, timestamp, sequence);
+    }
+
+    public synchronized long logWithdrawal(String accountNumber, long amount, long timestamp, long sequence) {
+        return logPosting(WITHDRAWAL, accountNumber, amount, timestamp, sequence);
+    }
+
+    public synchronized long logTransfer(String fromAccount, String toAccount, long amount, long timestamp, long sequence) {
+        byte[] from = utf8(fromAccount);
+        byte[] to = utf8(toAccount);
+        int start = begin(TRANSFER, 4 + from.length + to.length + 24);
+        putString(from);
+        putString(to);
+        pending.putLong(amount);
+        pending.putLong(timestamp);
+        pending.putLong(sequence);
+        return finish(start);
+    }
+
+    public synchronized long logTransferOut(long transferId, String fromAccount, String toAccount, long amount,
+            long timestamp, long sequence) {
+        byte[] from = utf8(fromAccount);
+        byte[] to = utf8(toAccount);
+        int start = begin(TRANSFER_OUT, 8 + 4 + from.length + to.length + 24);
+        pending.putLong(transferId);
+        putString(from);
+        putString(to);
+        pending.putLong(amount);
+        pending.putLong(timestamp);
+        pending.putLong(sequence);
+        return finish(start);
+    }
+
+    public synchronized long logTransferIn(long transferId, String toAccount, long amount, long timestamp, long sequence) {
+        byte[] to = utf8(toAccount);
+        int start = begin(TRANSFER_IN, 8 + 2 + to.length + 24);
+        pending.putLong(transferId);
+        putString(to);
+        pending.putLong(amount);
+        pending.putLong(timestamp);
+        pending.putLong(sequence);
+        return finish(start);
+    }
+
+    public synchronized long logTransferSettled(long transferId) {
+        int start = begin(TRANSFER_SETTLED, 8);
+        pending.putLong(transferId);
+        return finish(start);
+    }
+
+    public synchronized long logApplyLoan(String loanID, String borrower, long loanAmount, double interestRate) {
+        byte[] id = utf8(loanID);
+        byte[] name = utf8(borrower);
+        int start = begin(APPLY_LOAN, 4 + id.length + name.length + 16);
+        putString(id);
+        putString(name);
+        pending.putLong(loanAmount);
+        pending.putDouble(interestRate);
+        return finish(start);
+    }
+
+    public synchronized long logLoanPayment(String loanID, long amount, long timestamp) {
+        byte[] id = utf8(loanID);
+        int start = begin(LOAN_PAYMENT, 2 + id.length + 16);
+        putString(id);
+        pending.putLong(amount);
+        pending.putLong(timestamp);
+        return finish(start);
+    }
+
+    public synchronized long logInterestAccrual(int days) {
+        int start = begin(INTEREST_ACCRUAL, 4);
+        pending.putInt(days);
+        return finish(start);
+    }
+
+    private long logPosting(byte op, String accountNumber, long amount, long timestamp, long sequence) {
+        byte[] number = utf8(accountNumber);
+        int start = begin(op, 2 + number.length + 24);
+        putString(number);
+        pending.putLong(amount);
+        pending.putLong(timestamp);
+        pending.putLong(sequence);
+        return finish(start);
+    }
+
+    private int begin(byte op, int payloadSize) {
+        int recordSize = HEADER_SIZE + 9 + payloadSize;
+        if (pending.remaining() < recordSize) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + recordSize));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int start = pending.position();
+        pending.position(start + HEADER_SIZE);
+        pending.putLong(nextLsn);
+        pending.put(op);
+        return start;
+    }
+
+    private long finish(int start) {
+        int bodyStart = start + HEADER_SIZE;
+        int length = pending.position() - bodyStart;
+        crc.reset();
+        crc.update(pending.array(), bodyStart, length);
+        pending.putInt(start, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+        appendedSinceCheckpoint++;
+        notifyAll();
+        return nextLsn++;
+    }
+
+    private void putString(byte[] bytes) {
+        pending.putShort((short) bytes.length);
+        pending.put(bytes);
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Blocks until the record with the given LSN has been fsynced.
+    public synchronized void awaitDurable(long lsn) {
+        boolean interrupted = false;
+        while (durableLsn < lsn && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durableLsn < lsn) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+    }
+
+    // Like awaitDurable, but completes a future instead of blocking. The writer
+    // thread completes it, so dependent stages should hop to their own executor.
+    public synchronized CompletableFuture<Void> whenDurable(long lsn) {
+        if (durableLsn >= lsn) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (failure != null) {
+            return CompletableFuture.failedFuture(new UncheckedIOException("Journal write failed", failure));
+        }
+        return durableWaiters.computeIfAbsent(lsn, key -> new CompletableFuture<>());
+    }
+
+    public synchronized long lastLsn() {
+        return nextLsn - 1;
+    }
+
+    public synchronized long appendedSinceCheckpoint() {
+        return appendedSinceCheckpoint;
+    }
+
+    // Runs fn with every mutating operation excluded.
+    public <T> T exclusive(Callable<T> fn) throws Exception {
+        checkpointLock.writeLock().lock();
+        try {
+            return fn.call();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    // Drops every record once a checkpoint covering them is safely on disk.
+    // Callers must be inside exclusive().
+    public void truncate() throws IOException {
+        awaitDurable(lastLsn());
+        synchronized (this) {
+            channel.truncate(0);
+            channel.force(true);
+            appendedSinceCheckpoint = 0;
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                long batchLsn;
+                synchronized (this) {
+                    while (pending.position() == 0 && !closed) {
+                        wait();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                    ByteBuffer full = pending;
+                    pending = writing;
+                    writing = full;
+                    batchLsn = nextLsn - 1;
+                }
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+                writing.clear();
+                List<CompletableFuture<Void>> durable = null;
+                synchronized (this) {
+                    durableLsn = batchLsn;
+                    notifyAll();
+                    if (!durableWaiters.isEmpty()) {
+                        Map<Long, CompletableFuture<Void>> covered = durableWaiters.headMap(batchLsn, true);
+                        durable = new ArrayList<>(covered.values());
+                        covered.clear();
+                    }
+                }
+                if (durable != null) {
+                    for (CompletableFuture<Void> waiter : durable) {
+                        waiter.complete(null);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            List<CompletableFuture<Void>> failed;
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+                failed = new ArrayList<>(durableWaiters.values());
+                durableWaiters.clear();
+            }
+            for (CompletableFuture<Void> waiter : failed) {
+                waiter.completeExceptionally(new UncheckedIOException("Journal write failed", e));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    // Replays every intact record with an LSN above afterLsn through a read-only
+    // mapping of the log, cuts off a torn or corrupt tail, and returns the last LSN seen.
+    public static long replay(Path file, long afterLsn, Replayer replayer) throws IOException {
+        if (!Files.exists(file)) {
+            return afterLsn;
+        }
+        long lastLsn = afterLsn;
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long position = 0;
+            boolean intact = true;
+            while (intact && position < size) {
+                long windowSize = Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                int consumed = 0;
+                while (true) {
+                    if (window.limit() - consumed < HEADER_SIZE) {
+                        intact = position + consumed + HEADER_SIZE <= size;
+                        break;
+                    }
+                    int length = window.getInt(consumed);
+                    int checksum = window.getInt(consumed + 4);
+                    if (length < 9 || position + consumed + HEADER_SIZE + length > size) {
+                        intact = false;
+                        break;
+                    }
+                    if (consumed + HEADER_SIZE + length > window.limit()) {
+                        break;
+                    }
+                    ByteBuffer record = window.slice(consumed + HEADER_SIZE, length);
+                    crc.reset();
+                    crc.update(record.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        intact = false;
+                        break;
+                    }
+                    long lsn = record.getLong();
+                    byte op = record.get();
+                    if (lsn > afterLsn) {
+                        replayer.apply(op, record);
+                        lastLsn = lsn;
+                    }
+                    consumed += HEADER_SIZE + length;
+                }
+                position += consumed;
+            }
+            if (position < size) {
+                System.out.println("Discarding " + (size - position) + " bytes of incomplete journal data.");
+                channel.truncate(position);
+            }
+        }
+        return lastLsn;
+    }
+}
+
+class Bank {
+    private static final int CHECKPOINT_MAGIC = 0x42414E4C;
+    private static final long CHECKPOINT_THRESHOLD = 1_000_000;
+
+    private Map<String, BankAccount> accounts;
+    private Map<String, Loan> loans;
+    private final BankAggregates aggregates = new BankAggregates();
+    private final LoanLedger loanLedger = new LoanLedger(aggregates);
+    private final VelocityPolicy velocityPolicy = new VelocityPolicy();
+    private final SnapshotClock clock = new SnapshotClock();
+    // Cross-shard transfers this bank has debited but not settled, and those
+    // it has credited whose source may not have settled yet.
+    private final Map<Long, PendingTransfer> outgoingTransfers = new ConcurrentHashMap<>();
+    private final Set<Long> incomingTransfers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lastTransferId = new AtomicLong();
+    private Journal journal;
+    private Path checkpointFile;
+    private ScheduledExecutorService checkpointer;
+    private volatile int pinIterations = Integer.getInteger("bank.pinIterations", Credentials.DEFAULT_ITERATIONS);
+
+    public Bank() {
+        accounts = new ConcurrentHashMap<>();
+        loans = new ConcurrentHashMap<>();
+    }
+
+    // Opens a durable bank: loads the last checkpoint, replays the journal on
+    // top of it, and journals every later change under the given directory.
+    public Bank(Path directory) throws IOException {
+        this();
+        Files.createDirectories(directory);
+        checkpointFile = directory.resolve("bank.checkpoint");
+        Path journalFile = directory.resolve("bank.journal");
+        long lastLsn = loadCheckpoint();
+        lastLsn = Journal.replay(journalFile, lastLsn, this::replay);
+        journal = new Journal(journalFile, lastLsn);
+        for (BankAccount account : accounts.values()) {
+            account.attachJournal(journal);
+        }
+        for (Loan loan : loans.values()) {
+            loan.attachJournal(journal);
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bank-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            if (journal.appendedSinceCheckpoint() >= CHECKPOINT_THRESHOLD) {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    System.out.println("Checkpoint failed: " + e.getMessage());
+                }
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    public int getLoanCount() {
+        return loans.size();
+    }
+
+    public PostingStatus createAccount(String accountNumber, String accountHolder, String accountType, int pin) {
+        long start = System.nanoTime();
+        PostingStatus status = addAccount(accountNumber, accountHolder, accountType, pin);
+        BankMetrics.GLOBAL.record(BankOperation.CREATE_ACCOUNT, status, start);
+        return status;
+    }
+
+    private PostingStatus addAccount(String accountNumber, String accountHolder, String accountType, int pin) {
+        Credentials credentials = Credentials.create(pin, pinIterations);
+        BankAccount account = new BankAccount(accountNumber, accountHolder, accountType, credentials);
+        account.attachJournal(journal);
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        long epoch = clock.enter();
+        try {
+            account.attachClock(clock, epoch);
+            account.attachAggregates(aggregates);
+            account.attachVelocityPolicy(velocityPolicy);
+            if (accounts.putIfAbsent(accountNumber, account) != null) {
+                return PostingStatus.DUPLICATE_ACCOUNT;
+            }
+            if (journal != null) {
+                lsn = journal.logCreateAccount(accountNumber, accountHolder, accountType, credentials);
+            }
+        } finally {
+            clock.exit(epoch);
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        if (journal != null) {
+            journal.awaitDurable(lsn);
+        }
+        return PostingStatus.OK;
+    }
+
+    public BankAccount findAccount(String accountNumber) {
+        return accounts.get(accountNumber);
+    }
+
+    public boolean verifyPIN(String accountNumber, int enteredPin) {
+        BankAccount account = accounts.get(accountNumber);
+        return account != null && account.verifyPin(enteredPin, pinIterations);
+    }
+
+    // PBKDF2 iterations for new PINs; existing hashes below this are upgraded
+    // on their next successful login. Generated test data can use 1.
+    public void setPinIterations(int iterations) {
+        pinIterations = iterations;
+    }
+
+    public int getPinIterations() {
+        return pinIterations;
+    }
+
+    public PostingStatus applyForLoan(String loanID, String borrower, long loanAmount, double interestRate) {
+        long start = System.nanoTime();
+        PostingStatus status = addLoan(loanID, borrower, loanAmount, interestRate);
+        BankMetrics.GLOBAL.record(BankOperation.APPLY_LOAN, status, start);
+        return status;
+    }
+
+    private PostingStatus addLoan(String loanID, String borrower, long loanAmount, double interestRate) {
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        loanLedger.accrualLock().readLock().lock();
+        try {
+            if (loans.containsKey(loanID)) {
+                return PostingStatus.DUPLICATE_LOAN;
+            }
+            Loan loan = new Loan(loanID, borrower, loanAmount, interestRate, loanLedger);
+            loan.attachJournal(journal);
+            if (loans.putIfAbsent(loanID, loan) != null) {
+                loan.restoreRemainingAmount(0, 0);
+                return PostingStatus.DUPLICATE_LOAN;
+            }
+            if (journal != null) {
+                lsn = journal.logApplyLoan(loanID, borrower, loanAmount, interestRate);
+            }
+        } finally {
+            loanLedger.accrualLock().readLock().unlock();
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        if (journal != null) {
+            journal.awaitDurable(lsn);
+        }
+        return PostingStatus.OK;
+    }
+
+    public Loan findLoan(String loanID) {
+        return loans.get(loanID);
+    }
+
+    public Collection<Loan> getLoans() {
+        return loans.values();
+    }
+
+    public Collection<BankAccount> getAccounts() {
+        return accounts.values();
+    }
+
+    // Null turns the checks off. Accounts pick up a change on their next outgoing posting.
+    public void setVelocityLimits(VelocityLimits limits) {
+        velocityPolicy.setLimits(limits);
+    }
+
+    // Deposits held, outstanding loans and daily volumes, each readable in constant time.
+    public BankAggregates getAggregates() {
+        return aggregates;
+    }
+
+    // Point-in-time balances of every account, taken without pausing postings.
+    public BankSnapshot snapshot() {
+        long start = System.nanoTime();
+        long epoch = clock.open();
+        try {
+            int capacity = accounts.size() + 16;
+            String[] numbers = new String[capacity];
+            long[] balances = new long[capacity];
+            int size = 0;
+            for (BankAccount account : accounts.values()) {
+                BalanceVersion version = account.versionAt(epoch);
+                if (version == null) {
+                    continue;
+                }
+                if (size == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, size * 2);
+                    balances = Arrays.copyOf(balances, size * 2);
+                }
+                numbers[size] = account.getAccountNumber();
+                balances[size] = version.balance;
+                size++;
+            }
+            return new BankSnapshot(epoch, numbers, balances, size);
+        } finally {
+            clock.close();
+            BankMetrics.GLOBAL.record(BankOperation.SNAPSHOT, PostingStatus.OK, start);
+        }
+    }
+
+    // Consistent bank-wide total, computed like snapshot() without copying balances.
+    public long totalBalance() {
+        long epoch = openSnapshot();
+        try {
+            return balanceAt(epoch);
+        } finally {
+            closeSnapshot();
+        }
+    }
+
+    // Seals the clock for a caller that sums balances later with balanceAt();
+    // pair with closeSnapshot().
+    long openSnapshot() {
+        return clock.open();
+    }
+
+    long balanceAt(long epoch) {
+        long total = 0;
+        for (BankAccount account : accounts.values()) {
+            BalanceVersion version = account.versionAt(epoch);
+            if (version != null) {
+                total += version.balance;
+            }
+        }
+        return total;
+    }
+
+    void closeSnapshot() {
+        clock.close();
+    }
+
+    // End-of-day job: accrues days of interest on every open loan in one
+    // parallel sweep over the loan ledger. Loan payments wait while it runs.
+    public AccrualResult accrueInterest(int days) {
+        long start = System.nanoTime();
+        long lsn = 0;
+        AccrualResult result;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        loanLedger.accrualLock().writeLock().lock();
+        try {
+            result = loanLedger.accrue(days, ForkJoinPool.commonPool());
+            if (journal != null) {
+                lsn = journal.logInterestAccrual(days);
+            }
+        } finally {
+            loanLedger.accrualLock().writeLock().unlock();
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        awaitDurable(lsn);
+        BankMetrics.GLOBAL.record(BankOperation.ACCRUE_INTEREST, PostingStatus.OK, start);
+        return result;
+    }
+
+    public void awaitDurable(long lsn) {
+        if (journal != null && lsn > 0) {
+            journal.awaitDurable(lsn);
+        }
+    }
+
+    CompletableFuture<Void> whenDurable(long lsn) {
+        if (journal == null || lsn <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return journal.whenDurable(lsn);
+    }
+
+    // The escrow is recorded inside the same journal operation as the debit,
+    // so a checkpoint never sees one without the other.
+    long transferOut(long transferId, BankAccount from, String toAccount, long amount) {
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        try {
+            long lsn = from.postTransferOut(transferId, toAccount, amount);
+            if (lsn >= 0) {
+                outgoingTransfers.put(transferId, new PendingTransfer(transferId, from.getAccountNumber(), toAccount, amount));
+                lastTransferId.accumulateAndGet(transferId, Math::max);
+            }
+            return lsn;
+        } finally {
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+    }
+
+    // Credits a transfer id at most once; a repeat returns 0 without posting.
+    long transferIn(long transferId, BankAccount to, long amount) {
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        try {
+            if (!incomingTransfers.add(transferId)) {
+                return 0;
+            }
+            lastTransferId.accumulateAndGet(transferId, Math::max);
+            return to.postTransferIn(transferId, amount);
+        } finally {
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+    }
+
+    long settleTransfer(long transferId) {
+        long lsn = 0;
+        if (journal != null) {
+            journal.beginOperation();
+        }
+        try {
+            if (outgoingTransfers.remove(transferId) != null && journal != null) {
+                lsn = journal.logTransferSettled(transferId);
+            }
+        } finally {
+            if (journal != null) {
+                journal.endOperation();
+            }
+        }
+        return lsn;
+    }
+
+    void forgetTransfer(long transferId) {
+        incomingTransfers.remove(transferId);
+    }
+
+    void forgetTransfers() {
+        incomingTransfers.clear();
+    }
+
+    Collection<PendingTransfer> pendingTransfers() {
+        return outgoingTransfers.values();
+    }
+
+    // Highest transfer id this bank has seen, so ids are never reused after a restart.
+    long lastTransferId() {
+        return lastTransferId.get();
+    }
+
+    // Compacts the journal: writes every account, history and loan to a new
+    // checkpoint file, then truncates the log it supersedes.
+    public void checkpoint() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            journal.exclusive(() -> {
+                long lastLsn = journal.lastLsn();
+                Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                    writeCheckpoint(out, lastLsn);
+                }
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                journal.truncate();
+                return null;
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Checkpoint failed", e);
+        }
+        BankMetrics.GLOBAL.record(BankOperation.CHECKPOINT, PostingStatus.OK, start);
+    }
+
+    public void close() throws IOException {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void writeCheckpoint(DataOutputStream out, long lastLsn) throws IOException {
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeLong(lastLsn);
+        out.writeLong(BankAccount.currentSequence());
+        out.writeInt(accounts.size());
+        for (BankAccount account : accounts.values()) {
+            out.writeUTF(account.getAccountNumber());
+            out.writeUTF(account.getAccountHolder());
+            out.writeUTF(account.getAccountType());
+            account.getCredentials().write(out);
+            out.writeLong(account.getBalance());
+            TransactionHistory history = account.history();
+            out.writeInt(history.size());
+            for (int i = 0; i < history.size(); i++) {
+                out.writeByte(history.typeAt(i).ordinal());
+                out.writeLong(history.amountAt(i));
+                out.writeLong(history.timestampAt(i));
+                out.writeLong(history.sequenceAt(i));
+            }
+        }
+        out.writeInt(loans.size());
+        for (Loan loan : loans.values()) {
+            out.writeUTF(loan.getLoanID());
+            out.writeUTF(loan.getBorrower());
+            out.writeLong(loan.getLoanAmount());
+            out.writeDouble(loan.getInterestRate());
+            out.writeLong(loan.getRemainingAmount());
+            out.writeLong(loan.getAccruedInterest());
+        }
+        // Loan payments have no history to rebuild their daily totals from.
+        long today = BankAggregates.epochDay(System.currentTimeMillis());
+        out.writeInt(BankAggregates.DAYS);
+        for (long day = today - BankAggregates.DAYS + 1; day <= today; day++) {
+            out.writeLong(day);
+            out.writeLong(aggregates.getDailyCount(TransactionType.LOAN_PAYMENT, day));
+            out.writeLong(aggregates.getDailyVolume(TransactionType.LOAN_PAYMENT, day));
+        }
+        out.writeLong(lastTransferId.get());
+        out.writeInt(outgoingTransfers.size());
+        for (PendingTransfer pending : outgoingTransfers.values()) {
+            out.writeLong(pending.getTransferId());
+            out.writeUTF(pending.getFromAccount());
+            out.writeUTF(pending.getToAccount());
+            out.writeLong(pending.getAmount());
+        }
+        out.writeInt(incomingTransfers.size());
+        for (long transferId : incomingTransfers) {
+            out.writeLong(transferId);
+        }
+    }
+
+    private long loadCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a bank checkpoint: " + checkpointFile);
+            }
+            long lastLsn = in.readLong();
+            BankAccount.advanceSequence(in.readLong());
+            int accountCount = in.readInt();
+            for (int a = 0; a < accountCount; a++) {
+                String accountNumber = in.readUTF();
+                String accountHolder = in.readUTF();
+                String accountType = in.readUTF();
+                Credentials credentials = Credentials.read(in);
+                BankAccount account = new BankAccount(accountNumber, accountHolder, accountType, credentials);
+                account.restoreBalance(in.readLong());
+                account.attachClock(clock, clock.epoch());
+                account.attachAggregates(aggregates);
+                account.attachVelocityPolicy(velocityPolicy);
+                TransactionHistory history = account.history();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    TransactionType type = TransactionType.fromOrdinal(in.readByte());
+                    long amount = in.readLong();
+                    long timestamp = in.readLong();
+                    history.append(type, amount, timestamp, in.readLong());
+                    aggregates.recordPosting(type, amount, timestamp);
+                }
+                accounts.put(account.getAccountNumber(), account);
+            }
+            int loanCount = in.readInt();
+            for (int l = 0; l < loanCount; l++) {
+                Loan loan = new Loan(in.readUTF(), in.readUTF(), in.readLong(), in.readDouble(), loanLedger);
+                loan.restoreRemainingAmount(in.readLong(), in.readLong());
+                loans.put(loan.getLoanID(), loan);
+            }
+            int paymentDays = in.readInt();
+            for (int d = 0; d < paymentDays; d++) {
+                aggregates.restoreDaily(TransactionType.LOAN_PAYMENT, in.readLong(), in.readLong(), in.readLong());
+            }
+            lastTransferId.set(in.readLong());
+            int outgoing = in.readInt();
+            for (int t = 0; t < outgoing; t++) {
+                PendingTransfer pending = new PendingTransfer(in.readLong(), in.readUTF(), in.readUTF(), in.readLong());
+                outgoingTransfers.put(pending.getTransferId(), pending);
+            }
+            int incoming = in.readInt();
+            for (int t = 0; t < incoming; t++) {
+                incomingTransfers.add(in.readLong());
+            }
+            return lastLsn;
+        }
+    }
+
+    private void replay(byte op, ByteBuffer record) {
+        switch (op) {
+            case Journal.CREATE_ACCOUNT: {
+                String accountNumber = Journal.readString(record);
+                String accountHolder = Journal.readString(record);
+                String accountType = Journal.readString(record);
+                BankAccount account = new BankAccount(accountNumber, accountHolder, accountType, Credentials.get(record));
+                account.attachClock(clock, clock.epoch());
+                account.attachAggregates(aggregates);
+                account.attachVelocityPolicy(velocityPolicy);
+                accounts.put(account.getAccountNumber(), account);
+                break;
+            }
+            case Journal.DEPOSIT: {
+                BankAccount account = accounts.get(Journal.readString(record));
+                long amount = record.getLong();
+                long timestamp = record.getLong();
+                long sequence = record.getLong();
+                account.credit(amount, TransactionType.DEPOSIT, sequence, timestamp, clock.epoch());
+                BankAccount.advanceSequence(sequence);
+                break;
+            }
+            case Journal.WITHDRAWAL: {
+                BankAccount account = accounts.get(Journal.readString(record));
+                long amount = record.getLong();
+                long timestamp = record.getLong();
+                long sequence = record.getLong();
+                account.debit(amount, TransactionType.WITHDRAWAL, sequence, timestamp, clock.epoch());
+                BankAccount.advanceSequence(sequence);
+                break;
+            }
+            case Journal.TRANSFER: {
+                BankAccount from = accounts.get(Journal.readString(record));
+                BankAccount to = accounts.get(Journal.readString(record));
+                long amount = record.getLong();
+                long timestamp = record.getLong();
+                long sequence = record.getLong();
+                from.debit(amount, TransactionType.TRANSFER, sequence, timestamp, clock.epoch());
+                to.credit(amount, TransactionType.TRANSFER, sequence, timestamp, clock.epoch());
+                BankAccount.advanceSequence(sequence);
+                break;
+            }
+            case Journal.APPLY_LOAN: {
+                Loan loan = new Loan(Journal.readString(record), Journal.readString(record), record.getLong(), record.getDouble(),
+                        loanLedger);
+                loans.put(loan.getLoanID(), loan);
+                break;
+            }
+            case Journal.LOAN_PAYMENT: {
+                Loan loan = loans.get(Journal.readString(record));
+                long amount = record.getLong();
+                loan.settlePayment(amount);
+                aggregates.recordPosting(TransactionType.LOAN_PAYMENT, amount, record.getLong());
+                break;
+            }
+            case Journal.INTEREST_ACCRUAL:
+                loanLedger.accrue(record.getInt(), ForkJoinPool.commonPool());
+                break;
+            case Journal.TRANSFER_OUT: {
+                long transferId = record.getLong();
+                BankAccount from = accounts.get(Journal.readString(record));
+                String toAccount = Journal.readString(record);
+                long amount = record.getLong();
+                long timestamp = record.getLong();
+                long sequence = record.getLong();
+                from.debit(amount, TransactionType.TRANSFER, sequence, timestamp, clock.epoch());
+                outgoingTransfers.put(transferId, new PendingTransfer(transferId, from.getAccountNumber(), toAccount, amount));
+                lastTransferId.accumulateAndGet(transferId, Math::max);
+                BankAccount.advanceSequence(sequence);
+                break;
+            }
+            case Journal.TRANSFER_IN: {
+                long transferId = record.getLong();
+                BankAccount to = accounts.get(Journal.readString(record));
+                long amount = record.getLong();
+                long timestamp = record.getLong();
+                long sequence = record.getLong();
+                to.credit(amount, TransactionType.TRANSFER, sequence, timestamp, clock.epoch());
+                incomingTransfers.add(transferId);
+                lastTransferId.accumulateAndGet(transferId, Math::max);
+                BankAccount.advanceSequence(sequence);
+                break;
+            }
+            case Journal.TRANSFER_SETTLED:
+                outgoingTransfers.remove(record.getLong());
+                break;
+            case Journal.UPDATE_CREDENTIALS:
+                accounts.get(Journal.readString(record)).restoreCredentials(Credentials.get(record));
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record type " + op);
+        }
+    }
+}
+
+// Money a cross-shard transfer has debited on its source shard but not yet
+// confirmed as credited on the destination shard.
+class PendingTransfer {
+    private final long transferId;
+    private final String fromAccount;
+    private final String toAccount;
+    private final long amount;
+
+    public PendingTransfer(long transferId, String fromAccount, String toAccount, long amount) {
+        this.transferId = transferId;
+        this.fromAccount = fromAccount;
+        this.toAccount = toAccount;
+        this.amount = amount;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public String getFromAccount() {
+        return fromAccount;
+    }
+
+    public String getToAccount() {
+        return toAccount;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+}
+
+// Accounts partitioned by account-number hash over independent Bank shards,
+// each with its own executor and, when durable, its own journal directory.
+// Every step runs on the executor of the shard that owns the data it
+// touches, so a busy shard never holds up another. Transfers within a shard
+// go straight through TransferEngine; transfers between shards take two
+// phases around an escrow:
+//   1. the source shard debits the sender and journals TRANSFER_OUT,
+//   2. the destination shard credits the recipient and journals TRANSFER_IN,
+// after which the source journals TRANSFER_SETTLED and drops the escrow.
+// A transfer id is credited at most once, so on restart any escrow left
+// unsettled is simply driven through phase 2 again. No step waits for its
+// journal flush on a shard thread; the next step is chained onto the
+// group commit instead.
+//
+// totalBalance() cuts each shard on its own, in the style of Lai and Yang's
+// snapshot algorithm. Each audit has a generation number. Cutting a shard
+// seals its SnapshotClock and advances the shard's generation; only that
+// shard's debit and credit steps are held off, and only for the seal. A
+// credit carries the generation its debit saw, and a shard cuts itself
+// before applying a credit from a newer generation. So no credit lands
+// before its shard's cut if its debit came after the source's cut. Credits
+// debited before the source's cut and applied after the destination's are
+// in flight across the cut; the audit adds those up by transfer as they
+// arrive.
+class ShardedBank implements AutoCloseable {
+    private final Bank[] shards;
+    private final ExecutorService[] executors;
+    private final AtomicLong transferIds = new AtomicLong();
+    // Per shard: cross-shard debits and credits hold the read side while they
+    // post; a cut holds the write side while it seals the shard's clock.
+    private final ReentrantReadWriteLock[] cutLocks;
+    // Per shard, guarded by cutLocks: the generation of the last audit that cut it.
+    private final long[] cutGenerations;
+    // Debited credits not yet applied, by the parity of their debit's generation.
+    // Only the current and previous generation can have any.
+    private final LongAdder[] inFlight = { new LongAdder(), new LongAdder() };
+    // Cross-shard transfers whose settlement has not finished yet.
+    private final LongAdder unsettled = new LongAdder();
+    private volatile Audit audit = new Audit(0, 0);
+    private long lastGeneration;
+
+    // One run of totalBalance(): the epoch each shard's clock was sealed at,
+    // and the credits that were in flight across the cut.
+    private static final class Audit {
+        final long generation;
+        final long[] epochs;
+        final LongAdder inTransit = new LongAdder();
+
+        Audit(long generation, int shardCount) {
+            this.generation = generation;
+            this.epochs = new long[shardCount];
+        }
+    }
+
+    // One cross-shard transfer as it moves between the two shards' executors.
+    private static final class CrossShardTransfer {
+        final long transferId;
+        final int source;
+        final int destination;
+        final String fromAccount;
+        final String toAccount;
+        final long amount;
+        // The source's cut generation when it was debited.
+        long generation;
+
+        CrossShardTransfer(long transferId, int source, int destination, String fromAccount, String toAccount, long amount) {
+            this.transferId = transferId;
+            this.source = source;
+            this.destination = destination;
+            this.fromAccount = fromAccount;
+            this.toAccount = toAccount;
+            this.amount = amount;
+        }
+    }
+
+    public ShardedBank(int shardCount, int threadsPerShard) {
+        this(newShards(shardCount), threadsPerShard);
+    }
+
+    // Shard i keeps its checkpoint and journal under directory/shard-i.
+    public ShardedBank(Path directory, int shardCount, int threadsPerShard) throws IOException {
+        this(openShards(directory, shardCount), threadsPerShard);
+    }
+
+    private ShardedBank(Bank[] shards, int threadsPerShard) {
+        this.shards = shards;
+        executors = new ExecutorService[shards.length];
+        cutLocks = new ReentrantReadWriteLock[shards.length];
+        cutGenerations = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            cutLocks[i] = new ReentrantReadWriteLock();
+            String name = "shard-" + i;
+            executors[i] = Executors.newFixedThreadPool(threadsPerShard, r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            transferIds.accumulateAndGet(shards[i].lastTransferId(), Math::max);
+        }
+        recover();
+    }
+
+    private static Bank[] newShards(int shardCount) {
+        Bank[] shards = new Bank[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Bank();
+        }
+        return shards;
+    }
+
+    private static Bank[] openShards(Path directory, int shardCount) throws IOException {
+        Bank[] shards = new Bank[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Bank(directory.resolve("shard-" + i));
+        }
+        return shards;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public Bank getShard(int shard) {
+        return shards[shard];
+    }
+
+    public void setVelocityLimits(VelocityLimits limits) {
+        for (Bank shard : shards) {
+            shard.setVelocityLimits(limits);
+        }
+    }
+
+    public void setPinIterations(int iterations) {
+        for (Bank shard : shards) {
+            shard.setPinIterations(iterations);
+        }
+    }
+
+    public int shardOf(String accountNumber) {
+        int hash = accountNumber.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    public BankAccount findAccount(String accountNumber) {
+        return shards[shardOf(accountNumber)].findAccount(accountNumber);
+    }
+
+    public CompletableFuture<PostingStatus> createAccount(String accountNumber, String accountHolder, String accountType,
+            int pin) {
+        int shard = shardOf(accountNumber);
+        return CompletableFuture.supplyAsync(
+                () -> shards[shard].createAccount(accountNumber, accountHolder, accountType, pin), executors[shard]);
+    }
+
+    // Like BankAccount, postings here are not authenticated; callers check the session first.
+    public CompletableFuture<PostingStatus> deposit(String accountNumber, long amount) {
+        int shard = shardOf(accountNumber);
+        long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            BankAccount account = shards[shard].findAccount(accountNumber);
+            if (account == null) {
+                return CompletableFuture.completedFuture(PostingStatus.ACCOUNT_NOT_FOUND);
+            }
+            if (amount <= 0) {
+                return CompletableFuture.completedFuture(PostingStatus.INVALID_AMOUNT);
+            }
+            return durable(shard, account.postDeposit(amount));
+        }, executors[shard]).thenCompose(posted -> posted)
+                .whenComplete((status, failure) -> record(BankOperation.DEPOSIT, status, start));
+    }
+
+    public CompletableFuture<PostingStatus> withdraw(String accountNumber, long amount) {
+        int shard = shardOf(accountNumber);
+        long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            BankAccount account = shards[shard].findAccount(accountNumber);
+            if (account == null) {
+                return CompletableFuture.completedFuture(PostingStatus.ACCOUNT_NOT_FOUND);
+            }
+            if (amount <= 0) {
+                return CompletableFuture.completedFuture(PostingStatus.INVALID_AMOUNT);
+            }
+            return durable(shard, account.postWithdrawal(amount));
+        }, executors[shard]).thenCompose(posted -> posted)
+                .whenComplete((status, failure) -> record(BankOperation.WITHDRAWAL, status, start));
+    }
+
+    // Completes once the recipient's credit is durable; settling the escrow
+    // on the source shard finishes in the background.
+    public CompletableFuture<PostingStatus> transfer(String fromAccount, String toAccount, long amount) {
+        int source = shardOf(fromAccount);
+        int destination = shardOf(toAccount);
+        long start = System.nanoTime();
+        if (source == destination) {
+            return CompletableFuture.supplyAsync(() -> {
+                BankAccount from = shards[source].findAccount(fromAccount);
+                BankAccount to = shards[source].findAccount(toAccount);
+                if (from == null || to == null) {
+                    return CompletableFuture.completedFuture(PostingStatus.ACCOUNT_NOT_FOUND);
+                }
+                if (from == to) {
+                    return CompletableFuture.completedFuture(PostingStatus.SAME_ACCOUNT);
+                }
+                if (amount <= 0) {
+                    return CompletableFuture.completedFuture(PostingStatus.INVALID_AMOUNT);
+                }
+                return durable(source, TransferEngine.post(from, to, amount));
+            }, executors[source]).thenCompose(posted -> posted)
+                    .whenComplete((status, failure) -> record(BankOperation.TRANSFER, status, start));
+        }
+        CrossShardTransfer transfer = new CrossShardTransfer(transferIds.incrementAndGet(), source, destination,
+                fromAccount, toAccount, amount);
+        unsettled.increment();
+        CompletableFuture<PostingStatus> credited = CompletableFuture
+                .supplyAsync(() -> checkSender(source, fromAccount, amount), executors[source])
+                .thenApplyAsync(status -> status == PostingStatus.OK
+                        ? checkRecipient(destination, toAccount) : status, executors[destination])
+                .thenComposeAsync(status -> status == PostingStatus.OK
+                        ? sendOut(transfer) : CompletableFuture.completedFuture(status), executors[source])
+                .thenComposeAsync(status -> status == PostingStatus.OK
+                        ? receive(transfer).thenApply(ignored -> status) : CompletableFuture.completedFuture(status),
+                        executors[destination]);
+        credited.thenComposeAsync(status -> status == PostingStatus.OK
+                ? settle(transfer) : CompletableFuture.<Void>completedFuture(null), executors[source])
+                .whenComplete((ignored, failure) -> unsettled.decrement());
+        return credited.whenComplete((status, failure) -> record(BankOperation.TRANSFER, status, start));
+    }
+
+    // The posting's status once its journal record is durable. The flush is
+    // chained on, so the shard's executor is free in the meantime.
+    private CompletableFuture<PostingStatus> durable(int shard, long lsn) {
+        PostingStatus status = BankAccount.statusOf(lsn);
+        return shards[shard].whenDurable(lsn).thenApply(ignored -> status);
+    }
+
+    private static void record(BankOperation operation, PostingStatus status, long start) {
+        BankMetrics.GLOBAL.record(operation, status == null ? PostingStatus.UNSUPPORTED : status, start);
+    }
+
+    private PostingStatus checkSender(int source, String fromAccount, long amount) {
+        BankAccount from = shards[source].findAccount(fromAccount);
+        if (from == null) {
+            return PostingStatus.ACCOUNT_NOT_FOUND;
+        }
+        return amount <= 0 ? PostingStatus.INVALID_AMOUNT : PostingStatus.OK;
+    }
+
+    private PostingStatus checkRecipient(int destination, String toAccount) {
+        return shards[destination].findAccount(toAccount) == null ? PostingStatus.ACCOUNT_NOT_FOUND : PostingStatus.OK;
+    }
+
+    private CompletableFuture<PostingStatus> sendOut(CrossShardTransfer transfer) {
+        Bank shard = shards[transfer.source];
+        ReentrantReadWriteLock lock = cutLocks[transfer.source];
+        long lsn;
+        lock.readLock().lock();
+        try {
+            lsn = shard.transferOut(transfer.transferId, shard.findAccount(transfer.fromAccount), transfer.toAccount,
+                    transfer.amount);
+            if (lsn >= 0) {
+                transfer.generation = cutGenerations[transfer.source];
+                inFlight[(int) (transfer.generation & 1)].increment();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return durable(transfer.source, lsn);
+    }
+
+    private CompletableFuture<Void> receive(CrossShardTransfer transfer) {
+        Bank shard = shards[transfer.destination];
+        ReentrantReadWriteLock lock = cutLocks[transfer.destination];
+        long lsn;
+        lock.readLock().lock();
+        try {
+            while (cutGenerations[transfer.destination] < transfer.generation) {
+                lock.readLock().unlock();
+                try {
+                    cut(transfer.destination, audit);
+                } finally {
+                    lock.readLock().lock();
+                }
+            }
+            lsn = shard.transferIn(transfer.transferId, shard.findAccount(transfer.toAccount), transfer.amount);
+            if (transfer.generation < cutGenerations[transfer.destination]) {
+                audit.inTransit.add(transfer.amount);
+            }
+        } finally {
+            inFlight[(int) (transfer.generation & 1)].decrement();
+            lock.readLock().unlock();
+        }
+        return shard.whenDurable(lsn);
+    }
+
+    // The destination may forget the id only once the settlement is durable;
+    // until then a restart could still replay the escrow.
+    private CompletableFuture<Void> settle(CrossShardTransfer transfer) {
+        Bank shard = shards[transfer.source];
+        return shard.whenDurable(shard.settleTransfer(transfer.transferId))
+                .thenRun(() -> shards[transfer.destination].forgetTransfer(transfer.transferId));
+    }
+
+    // Waits until every cross-shard transfer started so far has settled or failed.
+    public void awaitSettled() throws InterruptedException {
+        while (unsettled.sum() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void recover() {
+        for (Bank shard : shards) {
+            for (PendingTransfer pending : shard.pendingTransfers()) {
+                Bank destination = shards[shardOf(pending.getToAccount())];
+                destination.awaitDurable(destination.transferIn(pending.getTransferId(),
+                        destination.findAccount(pending.getToAccount()), pending.getAmount()));
+                shard.awaitDurable(shard.settleTransfer(pending.getTransferId()));
+            }
+        }
+        for (Bank shard : shards) {
+            shard.forgetTransfers();
+        }
+    }
+
+    // Seals one shard's clock for the audit, unless it is already cut.
+    private void cut(int shard, Audit current) {
+        cutLocks[shard].writeLock().lock();
+        try {
+            if (cutGenerations[shard] < current.generation) {
+                current.epochs[shard] = shards[shard].openSnapshot();
+                cutGenerations[shard] = current.generation;
+            }
+        } finally {
+            cutLocks[shard].writeLock().unlock();
+        }
+    }
+
+    // Sum over all shards, counting each transfer exactly once: at its source
+    // if debited after the source's cut, at its recipient if credited before
+    // the recipient's cut, and as in transit otherwise. Transfers keep flowing
+    // while it runs; only concurrent audits wait for each other.
+    public synchronized long totalBalance() {
+        Audit current = new Audit(++lastGeneration, shards.length);
+        audit = current;
+        for (int i = 0; i < shards.length; i++) {
+            cut(i, current);
+        }
+        try {
+            // No debit is tagged with an older generation once every shard is
+            // cut, so the previous generation's credits only drain from here.
+            LongAdder previous = inFlight[(int) ((current.generation - 1) & 1)];
+            while (previous.sum() > 0) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+            long total = current.inTransit.sum();
+            for (int i = 0; i < shards.length; i++) {
+                total += shards[i].balanceAt(current.epochs[i]);
+            }
+            return total;
+        } finally {
+            for (Bank shard : shards) {
+                shard.closeSnapshot();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+        try {
+            for (ExecutorService executor : executors) {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Bank shard : shards) {
+            shard.close();
+        }
+    }
+}
+
+class StatementResult {
+    private final int files;
+    private final long statements;
+    private final long transactions;
+    private final long bytes;
+    private final long elapsedNanos;
+
+    StatementResult(int files, long statements, long transactions, long bytes, long elapsedNanos) {
+        this.files = files;
+        this.statements = statements;
+        this.transactions = transactions;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getStatements() {
+        return statements;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getStatementsPerSecond() {
+        return elapsedNanos == 0 ? 0 : statements / (elapsedNanos / 1e9);
+    }
+}
+
+// Statements for every account over [fromTimestamp, toTimestamp), written in
+// parallel. The account map's spliterator is split fork/join style into
+// leaves of about LEAF_ACCOUNTS accounts, and each leaf streams its
+// statements into its own part file through one reused text buffer and one
+// direct byte buffer. Histories are read in place through the time index,
+// so heap use does not grow with the number of accounts or their history.
+class StatementGenerator {
+    private static final int LEAF_ACCOUNTS = 16_384;
+    private static final int TEXT_FLUSH_CHARS = 64 * 1024;
+    private static final int BYTE_BUFFER_SIZE = 256 * 1024;
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private final Collection<BankAccount> accounts;
+    private final Path directory;
+    private final long fromTimestamp;
+    private final long toTimestamp;
+    private final AtomicInteger parts = new AtomicInteger();
+
+    public StatementGenerator(Collection<BankAccount> accounts, Path directory, long fromTimestamp, long toTimestamp) {
+        this.accounts = accounts;
+        this.directory = directory;
+        this.fromTimestamp = fromTimestamp;
+        this.toTimestamp = toTimestamp;
+    }
+
+    public StatementResult run(ForkJoinPool pool) throws IOException {
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        long[] totals;
+        try {
+            totals = pool.invoke(new StatementTask(this, accounts.spliterator()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new StatementResult(parts.get(), totals[0], totals[1], totals[2], System.nanoTime() - start);
+    }
+
+    // Returns {statements, transactions, bytes} for its share of the accounts.
+    private static class StatementTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient StatementGenerator generator;
+        private final transient Spliterator<BankAccount> accounts;
+
+        StatementTask(StatementGenerator generator, Spliterator<BankAccount> accounts) {
+            this.generator = generator;
+            this.accounts = accounts;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (accounts.estimateSize() > LEAF_ACCOUNTS) {
+                Spliterator<BankAccount> split = accounts.trySplit();
+                if (split != null) {
+                    StatementTask left = new StatementTask(generator, split);
+                    left.fork();
+                    long[] totals = new StatementTask(generator, accounts).compute();
+                    long[] leftTotals = left.join();
+                    for (int i = 0; i < totals.length; i++) {
+                        totals[i] += leftTotals[i];
+                    }
+                    return totals;
+                }
+            }
+            Path file = generator.directory.resolve(String.format("statements-%05d.txt", generator.parts.incrementAndGet()));
+            long[] totals = new long[3];
+            long[] typeTotals = new long[TYPES.length];
+            try (PartWriter out = new PartWriter(file)) {
+                accounts.forEachRemaining(account -> {
+                    totals[1] += generator.writeStatement(out, account, typeTotals);
+                    totals[0]++;
+                });
+                out.flush();
+                totals[2] = out.getBytesWritten();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return totals;
+        }
+    }
+
+    // Balance and history length are read together under the account lock;
+    // everything else walks the columns up to that length without locking.
+    // Returns the number of transactions in the period.
+    private int writeStatement(PartWriter out, BankAccount account, long[] typeTotals) {
+        TransactionHistory history = account.history();
+        int end;
+        long balance;
+        account.lock().lock();
+        try {
+            end = history.size();
+            balance = account.getBalance();
+        } finally {
+            account.lock().unlock();
+        }
+        int first = history.firstIndexAtOrAfter(fromTimestamp, end);
+        int last = history.firstIndexAtOrAfter(toTimestamp, end);
+        long closing = balance;
+        for (int i = last; i < end; i++) {
+            closing -= history.amountAt(i);
+        }
+        long opening = closing;
+        for (int i = first; i < last; i++) {
+            opening -= history.amountAt(i);
+        }
+
+        StringBuilder text = out.text();
+        text.append("Statement for account ").append(account.getAccountNumber()).append(" (")
+                .append(account.getAccountHolder()).append(", ").append(account.getAccountType()).append(")\n");
+        text.append("Period: ").append(Instant.ofEpochMilli(fromTimestamp)).append(" to ")
+                .append(Instant.ofEpochMilli(toTimestamp)).append('\n');
+        text.append("Opening balance: $").append(Money.format(opening)).append('\n');
+        out.lineWritten();
+        Arrays.fill(typeTotals, 0);
+        for (int i = first; i < last; i++) {
+            TransactionType type = history.typeAt(i);
+            long amount = history.amountAt(i);
+            typeTotals[type.ordinal()] += amount;
+            text.append("  ").append(Instant.ofEpochMilli(history.timestampAt(i))).append(' ').append(type)
+                    .append(" $").append(Money.format(amount)).append('\n');
+            out.lineWritten();
+        }
+        for (TransactionType type : TYPES) {
+            text.append("Total ").append(type).append(": $").append(Money.format(typeTotals[type.ordinal()])).append('\n');
+        }
+        text.append("Closing balance: $").append(Money.format(closing)).append("\n\n");
+        out.lineWritten();
+        return last - first;
+    }
+
+    // Text is gathered in a StringBuilder and encoded as UTF-8 straight into
+    // a direct buffer that is written to the channel whenever it fills.
+    private static class PartWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final StringBuilder text = new StringBuilder(TEXT_FLUSH_CHARS + 1024);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private long bytesWritten;
+
+        PartWriter(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        StringBuilder text() {
+            return text;
+        }
+
+        void lineWritten() {
+            if (text.length() >= TEXT_FLUSH_CHARS) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, true);
+                bytes.flip();
+                while (bytes.hasRemaining()) {
+                    bytesWritten += channel.write(bytes);
+                }
+                bytes.clear();
+                if (result.isUnderflow()) {
+                    break;
+                }
+            }
+            encoder.reset();
+            text.setLength(0);
+        }
+
+        long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
+
+// Streams a posting file (TYPE,account,amount[,recipient] per line) into the
+// bank. Records are partitioned by the debited account and each partition is
+// applied in file order by its own worker, so postings to one account keep
+// their order while different accounts proceed in parallel. A transfer whose
+// recipient is in another partition is queued on both partitions and applied
+// once both workers reach it, so each account sees it in file order.
+// Each record gets a line in the result file once its journal entry is
+// durable.
+class BatchPoster {
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int RESULT_FLUSH_CHARS = 64 * 1024;
+    private static final Posting END = new Posting(0, null);
+
+    private final Bank bank;
+    private final int partitions;
+    private long postings;
+    private long elapsedNanos;
+    private final long[] statusCounts = new long[PostingStatus.values().length];
+
+    private static class Posting {
+        final long line;
+        final String[] fields;
+
+        Posting(long line, String[] fields) {
+            this.line = line;
+            this.fields = fields;
+        }
+    }
+
+    // A transfer whose recipient is in another partition. It is queued on
+    // both partitions: the debit side applies it once both workers have
+    // reached it, and the credit side waits until it has been applied.
+    private static class CrossTransfer extends Posting {
+        final CountDownLatch reached = new CountDownLatch(2);
+        final CountDownLatch applied = new CountDownLatch(1);
+        final Posting creditSide = new CreditSide(this);
+
+        CrossTransfer(long line, String[] fields) {
+            super(line, fields);
+        }
+    }
+
+    private static class CreditSide extends Posting {
+        final CrossTransfer transfer;
+
+        CreditSide(CrossTransfer transfer) {
+            super(0, null);
+            this.transfer = transfer;
+        }
+    }
+
+    public BatchPoster(Bank bank, int partitions) {
+        this.bank = bank;
+        this.partitions = partitions;
+    }
+
+    public void run(Path input, Path output) throws IOException, InterruptedException {
+        List<ArrayBlockingQueue<Posting>> queues = new ArrayList<>();
+        List<Worker> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(input);
+                BufferedWriter results = Files.newBufferedWriter(output)) {
+            for (int i = 0; i < partitions; i++) {
+                ArrayBlockingQueue<Posting> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                Worker worker = new Worker(queue, results);
+                queues.add(queue);
+                workers.add(worker);
+                worker.start();
+            }
+            long line = 0;
+            String text;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                if (text.isBlank()) {
+                    continue;
+                }
+                String[] fields = text.split(",", -1);
+                int partition = partitionOf(fields, 1);
+                int creditPartition = fields.length == 4 && fields[0].trim().equals("TRANSFER") ? partitionOf(fields, 3) : partition;
+                if (creditPartition != partition) {
+                    CrossTransfer transfer = new CrossTransfer(line, fields);
+                    queues.get(partition).put(transfer);
+                    queues.get(creditPartition).put(transfer.creditSide);
+                    continue;
+                }
+                queues.get(partition).put(new Posting(line, fields));
+            }
+            for (ArrayBlockingQueue<Posting> queue : queues) {
+                queue.put(END);
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            for (Worker worker : workers) {
+                if (worker.failure != null) {
+                    throw new IOException("Batch worker failed", worker.failure);
+                }
+                postings += worker.processed;
+                for (int i = 0; i < statusCounts.length; i++) {
+                    statusCounts[i] += worker.statusCounts[i];
+                }
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    public long getPostings() {
+        return postings;
+    }
+
+    public long getStatusCount(PostingStatus status) {
+        return statusCounts[status.ordinal()];
+    }
+
+    public double getPostingsPerSecond() {
+        return elapsedNanos == 0 ? 0 : postings / (elapsedNanos / 1e9);
+    }
+
+    public void printSummary() {
+        System.out.println("Posted " + postings + " records in " + elapsedNanos / 1_000_000 + " ms ("
+                + (long) getPostingsPerSecond() + " postings/sec).");
+        for (PostingStatus status : PostingStatus.values()) {
+            if (statusCounts[status.ordinal()] > 0) {
+                System.out.println(status + ": " + statusCounts[status.ordinal()]);
+            }
+        }
+    }
+
+    private int partitionOf(String[] fields, int field) {
+        return fields.length > field ? Math.floorMod(fields[field].trim().hashCode(), partitions) : 0;
+    }
+
+    private PostingStatus apply(String[] fields, long[] lsn) {
+        if (fields.length < 3 || fields.length > 4) {
+            return PostingStatus.MALFORMED;
+        }
+        TransactionType type;
+        long amount;
+        try {
+            type = TransactionType.valueOf(fields[0].trim());
+            amount = Money.toCents(new BigDecimal(fields[2].trim()));
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return PostingStatus.MALFORMED;
+        }
+        if (amount <= 0) {
+            return PostingStatus.INVALID_AMOUNT;
+        }
+        BankAccount account = bank.findAccount(fields[1].trim());
+        if (account == null) {
+            return PostingStatus.ACCOUNT_NOT_FOUND;
+        }
+        switch (type) {
+            case DEPOSIT:
+                lsn[0] = account.postDeposit(amount);
+                return PostingStatus.OK;
+            case WITHDRAWAL:
+                lsn[0] = account.postWithdrawal(amount);
+                return BankAccount.statusOf(lsn[0]);
+            case TRANSFER:
+                BankAccount recipient = fields.length == 4 ? bank.findAccount(fields[3].trim()) : null;
+                if (recipient == null) {
+                    return PostingStatus.ACCOUNT_NOT_FOUND;
+                }
+                if (recipient == account) {
+                    return PostingStatus.SAME_ACCOUNT;
+                }
+                lsn[0] = TransferEngine.post(account, recipient, amount);
+                return BankAccount.statusOf(lsn[0]);
+            default:
+                return PostingStatus.UNSUPPORTED;
+        }
+    }
+
+    private class Worker extends Thread {
+        private final ArrayBlockingQueue<Posting> queue;
+        private final BufferedWriter results;
+        private final StringBuilder buffer = new StringBuilder(RESULT_FLUSH_CHARS + 256);
+        private final long[] statusCounts = new long[PostingStatus.values().length];
+        private final long[] lsn = new long[1];
+        private long lastLsn;
+        private long processed;
+        private Exception failure;
+
+        Worker(ArrayBlockingQueue<Posting> queue, BufferedWriter results) {
+            super("batch-poster");
+            this.queue = queue;
+            this.results = results;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Posting posting = queue.poll();
+                    if (posting == null) {
+                        flush();
+                        posting = queue.take();
+                    }
+                    if (posting == END) {
+                        break;
+                    }
+                    if (posting instanceof CrossTransfer) {
+                        CrossTransfer transfer = (CrossTransfer) posting;
+                        transfer.reached.countDown();
+                        transfer.reached.await();
+                        try {
+                            process(transfer);
+                        } finally {
+                            transfer.applied.countDown();
+                        }
+                    } else if (posting instanceof CreditSide) {
+                        CrossTransfer transfer = ((CreditSide) posting).transfer;
+                        transfer.reached.countDown();
+                        transfer.applied.await();
+                    } else {
+                        process(posting);
+                    }
+                }
+                flush();
+            } catch (Exception e) {
+                failure = e;
+                drain();
+            }
+        }
+
+        private void process(Posting posting) throws IOException {
+            lsn[0] = 0;
+            long start = System.nanoTime();
+            PostingStatus status = apply(posting.fields, lsn);
+            BankMetrics.GLOBAL.record(BankOperation.BATCH_POSTING, status, start);
+            if (status == PostingStatus.OK) {
+                lastLsn = Math.max(lastLsn, lsn[0]);
+            }
+            statusCounts[status.ordinal()]++;
+            processed++;
+            buffer.append(posting.line).append(',').append(status).append('\n');
+            if (buffer.length() >= RESULT_FLUSH_CHARS) {
+                flush();
+            }
+        }
+
+        // Keeps the reader from blocking on a full queue, and the other side of
+        // a cross-partition transfer from waiting forever, after a failure.
+        private void drain() {
+            try {
+                Posting posting;
+                while ((posting = queue.take()) != END) {
+                    if (posting instanceof CrossTransfer) {
+                        ((CrossTransfer) posting).reached.countDown();
+                        ((CrossTransfer) posting).applied.countDown();
+                        processed++;
+                    } else if (posting instanceof CreditSide) {
+                        ((CreditSide) posting).transfer.reached.countDown();
+                    } else {
+                        processed++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Results are only written once every posting they report is durable.
+        private void flush() throws IOException {
+            if (buffer.length() == 0) {
+                return;
+            }
+            bank.awaitDurable(lastLsn);
+            synchronized (results) {
+                results.append(buffer);
+            }
+            buffer.setLength(0);
+        }
+    }
+}
+
+// Logged-in sessions keyed by a random token. Checking a token is a map
+// lookup, so only login pays for the PIN hash. A session expires after
+// idleMillis without use, and at most maxSessions are held: logging in
+// past that evicts the oldest sessions first.
+class SessionCache {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int TOKEN_BYTES = 24;
+    // Expiry is pushed forward at most this often, so busy sessions don't
+    // write to shared memory on every request.
+    private static final long TOUCH_MILLIS = 1_000;
+
+    private static final class Session {
+        final String accountNumber;
+        volatile long expiresAt;
+
+        Session(String accountNumber, long expiresAt) {
+            this.accountNumber = accountNumber;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxSessions;
+    private final long idleMillis;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // Tokens in login order; may still hold tokens that were closed or expired.
+    private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public SessionCache(int maxSessions, long idleMillis) {
+        if (maxSessions <= 0 || idleMillis <= 0) {
+            throw new IllegalArgumentException("Session limits must be positive");
+        }
+        this.maxSessions = maxSessions;
+        this.idleMillis = idleMillis;
+    }
+
+    public String open(String accountNumber) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(accountNumber, System.currentTimeMillis() + idleMillis));
+        order.add(token);
+        while (sessions.size() > maxSessions) {
+            String oldest = order.poll();
+            if (oldest == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            sessions.remove(oldest);
+        }
+        // Closed and expired tokens are only dropped from the queue when they
+        // reach its head; sweep them once they outnumber the live ones.
+        if (queued.incrementAndGet() > 2 * maxSessions) {
+            long now = System.currentTimeMillis();
+            sessions.values().removeIf(session -> session.expiresAt <= now);
+            order.removeIf(queuedToken -> {
+                if (sessions.containsKey(queuedToken)) {
+                    return false;
+                }
+                queued.decrementAndGet();
+                return true;
+            });
+        }
+        return token;
+    }
+
+    // The account the token is logged in to, or null if it is unknown or has expired.
+    public String accountFor(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = session.expiresAt;
+        if (expiresAt <= now) {
+            sessions.remove(token, session);
+            return null;
+        }
+        if (now + idleMillis - expiresAt >= TOUCH_MILLIS) {
+            session.expiresAt = now + idleMillis;
+        }
+        return session.accountNumber;
+    }
+
+    public void close(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}
+
+class ServiceResult {
+    private final PostingStatus status;
+    private final long balance;
+    private final List<Transaction> transactions;
+    private final long nextCursor;
+    private final String token;
+
+    private ServiceResult(PostingStatus status, long balance, List<Transaction> transactions, long nextCursor, String token) {
+        this.status = status;
+        this.balance = balance;
+        this.transactions = transactions;
+        this.nextCursor = nextCursor;
+        this.token = token;
+    }
+
+    public static ServiceResult of(PostingStatus status) {
+        return new ServiceResult(status, 0, null, HistoryPage.NO_MORE, null);
+    }
+
+    public static ServiceResult of(PostingStatus status, long balance) {
+        return new ServiceResult(status, balance, null, HistoryPage.NO_MORE, null);
+    }
+
+    public static ServiceResult ofHistory(HistoryPage page) {
+        return new ServiceResult(PostingStatus.OK, 0, page.getEntries(), page.getNextCursor(), null);
+    }
+
+    public static ServiceResult ofSession(String token) {
+        return new ServiceResult(PostingStatus.OK, 0, null, HistoryPage.NO_MORE, token);
+    }
+
+    // Set only by a successful login.
+    public String getToken() {
+        return token;
+    }
+
+    public PostingStatus getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == PostingStatus.OK;
+    }
+
+    // Account balance after the operation, or the remaining loan balance for loan operations.
+    public long getBalance() {
+        return balance;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != HistoryPage.NO_MORE;
+    }
 }
 
-class BankAccount {
-    private String accountNumber;
-    private String accountHolder;
-    private String accountType;
-    private double balance;
-    private int pin;
-    private List<Transaction> transactionHistory;
+// The account and loan calls a client can make, whether in process
+// (BankService) or over the network (BankClient).
+interface BankApi {
+    ServiceResult createAccount(String accountNumber, String accountHolder, String accountType, int pin);
+
+    ServiceResult login(String accountNumber, int pin);
+
+    void logout(String token);
+
+    ServiceResult deposit(String token, long amount);
+
+    ServiceResult withdraw(String token, long amount);
+
+    ServiceResult transfer(String token, String toAccount, long amount);
+
+    ServiceResult balance(String token);
+
+    ServiceResult applyForLoan(String token, String loanID, long loanAmount, double interestRate);
+
+    ServiceResult makeLoanPayment(String token, String loanID, long amount);
+
+    ServiceResult loanBalance(String token, String loanID);
+}
+
+// Headless entry point to the bank: every call validates its input and
+// returns a result code instead of printing, so it can be shared by the
+// console menu, the network front end and batch tools. Account and loan
+// operations take the token from login() rather than a PIN.
+class BankService implements BankApi {
+    private final Bank bank;
+    private final SessionCache sessions;
+
+    public BankService(Bank bank) {
+        this(bank, new SessionCache(Integer.getInteger("bank.maxSessions", 100_000),
+                TimeUnit.MINUTES.toMillis(Long.getLong("bank.sessionMinutes", 15))));
+    }
+
+    public BankService(Bank bank, SessionCache sessions) {
+        this.bank = bank;
+        this.sessions = sessions;
+    }
+
+    public Bank getBank() {
+        return bank;
+    }
+
+    public boolean accountExists(String accountNumber) {
+        return bank.findAccount(accountNumber) != null;
+    }
+
+    public boolean loanExists(String loanID) {
+        return bank.findLoan(loanID) != null;
+    }
+
+    public ServiceResult createAccount(String accountNumber, String accountHolder, String accountType, int pin) {
+        return ServiceResult.of(bank.createAccount(accountNumber, accountHolder, accountType, pin));
+    }
+
+    // The only call that checks a PIN. The returned token stays valid until
+    // logout, or until it sits idle past the session timeout or is evicted.
+    public ServiceResult login(String accountNumber, int pin) {
+        long start = System.nanoTime();
+        ServiceResult result = authenticate(accountNumber, pin);
+        BankMetrics.GLOBAL.record(BankOperation.LOGIN, result.getStatus(), start);
+        return result;
+    }
+
+    private ServiceResult authenticate(String accountNumber, int pin) {
+        BankAccount account = bank.findAccount(accountNumber);
+        if (account == null) {
+            return ServiceResult.of(PostingStatus.ACCOUNT_NOT_FOUND);
+        }
+        if (!account.verifyPin(pin, bank.getPinIterations())) {
+            return ServiceResult.of(PostingStatus.INVALID_PIN);
+        }
+        return ServiceResult.ofSession(sessions.open(accountNumber));
+    }
+
+    public void logout(String token) {
+        sessions.close(token);
+    }
+
+    public boolean isLoggedIn(String token) {
+        return sessions.accountFor(token) != null;
+    }
+
+    public ServiceResult deposit(String token, long amount) {
+        long start = System.nanoTime();
+        BankAccount account = sessionAccount(token);
+        if (account == null) {
+            return rejected(BankOperation.DEPOSIT, PostingStatus.INVALID_SESSION, start);
+        }
+        return ServiceResult.of(account.deposit(amount), account.getBalance());
+    }
+
+    public ServiceResult withdraw(String token, long amount) {
+        long start = System.nanoTime();
+        BankAccount account = sessionAccount(token);
+        if (account == null) {
+            return rejected(BankOperation.WITHDRAWAL, PostingStatus.INVALID_SESSION, start);
+        }
+        return ServiceResult.of(account.withdraw(amount), account.getBalance());
+    }
+
+    // Sends from the session's account; the recipient only has to exist.
+    public ServiceResult transfer(String token, String toAccount, long amount) {
+        long start = System.nanoTime();
+        BankAccount from = sessionAccount(token);
+        if (from == null) {
+            return rejected(BankOperation.TRANSFER, PostingStatus.INVALID_SESSION, start);
+        }
+        BankAccount to = bank.findAccount(toAccount);
+        if (to == null) {
+            return rejected(BankOperation.TRANSFER, PostingStatus.ACCOUNT_NOT_FOUND, start);
+        }
+        return ServiceResult.of(from.transfer(to, amount), from.getBalance());
+    }
+
+    public ServiceResult balance(String token) {
+        long start = System.nanoTime();
+        ServiceResult result = readBalance(token);
+        BankMetrics.GLOBAL.record(BankOperation.BALANCE, result.getStatus(), start);
+        return result;
+    }
+
+    private ServiceResult readBalance(String token) {
+        BankAccount account = sessionAccount(token);
+        if (account == null) {
+            return ServiceResult.of(PostingStatus.INVALID_SESSION);
+        }
+        return ServiceResult.of(PostingStatus.OK, account.getBalance());
+    }
+
+    // One page of history in [fromTimestamp, toTimestamp), optionally of a single
+    // type. Start with cursor 0 and pass back getNextCursor() for the next page.
+    public ServiceResult history(String token, long fromTimestamp, long toTimestamp,
+            TransactionType type, long cursor, int limit) {
+        long start = System.nanoTime();
+        ServiceResult result = readHistory(token, fromTimestamp, toTimestamp, type, cursor, limit);
+        BankMetrics.GLOBAL.record(BankOperation.HISTORY, result.getStatus(), start);
+        return result;
+    }
 
-    public BankAccount(String accountNumber, String accountHolder, String accountType, int pin) {
-        this.accountNumber = accountNumber;
-        this.accountHolder = accountHolder;
-        this.accountType = accountType;
-        this.balance = 0.0;
-        this.pin = pin;
-        transactionHistory = new ArrayList<>();
+    private ServiceResult readHistory(String token, long fromTimestamp, long toTimestamp,
+            TransactionType type, long cursor, int limit) {
+        BankAccount account = sessionAccount(token);
+        if (account == null) {
+            return ServiceResult.of(PostingStatus.INVALID_SESSION);
+        }
+        if (limit <= 0 || cursor < 0) {
+            return ServiceResult.of(PostingStatus.MALFORMED);
+        }
+        return ServiceResult.ofHistory(account.getHistoryPage(fromTimestamp, toTimestamp, type, cursor, limit));
     }
 
-    public List<Transaction> getTransactionHistory() {
-        return transactionHistory;
+    // The session's account becomes the loan's borrower.
+    public ServiceResult applyForLoan(String token, String loanID, long loanAmount, double interestRate) {
+        long start = System.nanoTime();
+        BankAccount account = sessionAccount(token);
+        if (account == null) {
+            return rejected(BankOperation.APPLY_LOAN, PostingStatus.INVALID_SESSION, start);
+        }
+        return ServiceResult.of(bank.applyForLoan(loanID, account.getAccountNumber(), loanAmount, interestRate), loanAmount);
     }
 
-    public void recordTransaction(TransactionType type, double amount) {
-        Transaction transaction = new Transaction(type, amount);
-        transactionHistory.add(transaction);
+    // Only the borrower's session can pay; other accounts' loans look missing.
+    public ServiceResult makeLoanPayment(String token, String loanID, long amount) {
+        long start = System.nanoTime();
+        BankAccount account = sessionAccount(token);
+        if (account == null) {
+            return rejected(BankOperation.LOAN_PAYMENT, PostingStatus.INVALID_SESSION, start);
+        }
+        Loan loan = bank.findLoan(loanID);
+        if (loan == null || !loan.getBorrower().equals(account.getAccountNumber())) {
+            return rejected(BankOperation.LOAN_PAYMENT, PostingStatus.LOAN_NOT_FOUND, start);
+        }
+        return ServiceResult.of(loan.makePayment(amount), loan.getRemainingAmount());
     }
 
-    public String getAccountNumber() {
-        return accountNumber;
+    // The remaining balance of one of the session's loans.
+    public ServiceResult loanBalance(String token, String loanID) {
+        BankAccount account = sessionAccount(token);
+        if (account == null) {
+            return ServiceResult.of(PostingStatus.INVALID_SESSION);
+        }
+        Loan loan = bank.findLoan(loanID);
+        if (loan == null || !loan.getBorrower().equals(account.getAccountNumber())) {
+            return ServiceResult.of(PostingStatus.LOAN_NOT_FOUND);
+        }
+        return ServiceResult.of(PostingStatus.OK, loan.getRemainingAmount());
     }
 
-    public String getAccountHolder() {
-        return accountHolder;
+    private BankAccount sessionAccount(String token) {
+        String accountNumber = sessions.accountFor(token);
+        return accountNumber == null ? null : bank.findAccount(accountNumber);
     }
 
-    public String getAccountType() {
-        return accountType;
+    // Requests turned away here never reach the account or loan, so they are
+    // counted here, timed from when the request arrived.
+    private static ServiceResult rejected(BankOperation operation, PostingStatus status, long start) {
+        BankMetrics.GLOBAL.record(operation, status, start);
+        return ServiceResult.of(status);
     }
+}
 
-    public double getBalance() {
-        return balance;
+// Line-oriented TCP front end for BankService. Each connection is served by
+// its own virtual thread, so thousands of idle or slow clients cost little.
+// Requests are whitespace-separated; replies are "OK <balance>" or "ERR <status>":
+//   CREATE <account> <pin> <type> <holder...>
+//   LOGIN <account> <pin>           (replies "OK <token>")
+//   LOGOUT <token>
+//   DEPOSIT <token> <amount>
+//   WITHDRAW <token> <amount>
+//   TRANSFER <token> <to> <amount>
+//   BALANCE <token>
+//   HISTORY <token> [type|ALL] [cursor] [limit] [fromMillis] [toMillis]
+//                                   (replies "OK <count> <nextCursor>", then one line per transaction)
+//   LOAN <token> <loanID> <amount> <rate>
+//   PAY <token> <loanID> <amount>
+//   LOANBALANCE <token> <loanID>
+//   QUIT
+class BankServer implements AutoCloseable {
+    private static final int HISTORY_PAGE_SIZE = 100;
+
+    private final BankService service;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+
+    public BankServer(BankService service, int port) throws IOException {
+        this.service = service;
+        this.serverSocket = new ServerSocket(port);
     }
 
-    public int getPin() {
-        return pin;
+    public int getPort() {
+        return serverSocket.getLocalPort();
     }
 
-    public void deposit(double amount, int enteredPin) {
-        if (enteredPin != pin) {
-            System.out.println("Invalid PIN. Deposit not allowed.");
-            return;
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.submit(() -> handle(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("Accept failed: " + e.getMessage());
+                }
+            }
         }
+    }
 
-        if (amount > 0) {
-            balance += amount;
-            recordTransaction(TransactionType.DEPOSIT, amount);
-            System.out.println("Deposited $" + amount + " into " + accountType + " account.");
-        } else {
-            System.out.println("Invalid deposit amount.");
+    private void handle(Socket socket) {
+        try (socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] request = line.trim().split("\\s+");
+                if (request[0].equalsIgnoreCase("QUIT")) {
+                    break;
+                }
+                ServiceResult result;
+                try {
+                    result = dispatch(request);
+                } catch (RuntimeException e) {
+                    result = ServiceResult.of(PostingStatus.MALFORMED);
+                }
+                if (result.isOk() && result.getToken() != null) {
+                    out.write("OK " + result.getToken());
+                    out.newLine();
+                } else if (result.isOk() && result.getTransactions() != null) {
+                    out.write("OK " + result.getTransactions().size() + " " + result.getNextCursor());
+                    out.newLine();
+                    for (Transaction transaction : result.getTransactions()) {
+                        out.write(transaction.getType() + " " + Money.format(transaction.getAmount()) + " "
+                                + transaction.getTimestamp() + " " + transaction.getSequence());
+                        out.newLine();
+                    }
+                } else if (result.isOk()) {
+                    out.write("OK " + Money.format(result.getBalance()));
+                    out.newLine();
+                } else {
+                    out.write("ERR " + result.getStatus());
+                    out.newLine();
+                }
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Client went away; nothing to clean up beyond the socket.
         }
     }
 
-    public void depositToRecipient(double amount) {
-        if (amount > 0) {
-            balance += amount;
+    private ServiceResult dispatch(String[] request) {
+        switch (request[0].toUpperCase()) {
+            case "CREATE":
+                return service.createAccount(request[1], joinFrom(request, 4), request[3], Integer.parseInt(request[2]));
+            case "LOGIN":
+                return service.login(request[1], Integer.parseInt(request[2]));
+            case "LOGOUT":
+                service.logout(request[1]);
+                return ServiceResult.of(PostingStatus.OK);
+            case "DEPOSIT":
+                return service.deposit(request[1], Money.toCents(new BigDecimal(request[2])));
+            case "WITHDRAW":
+                return service.withdraw(request[1], Money.toCents(new BigDecimal(request[2])));
+            case "TRANSFER":
+                return service.transfer(request[1], request[2], Money.toCents(new BigDecimal(request[3])));
+            case "BALANCE":
+                return service.balance(request[1]);
+            case "HISTORY":
+                TransactionType type = request.length > 2 && !request[2].equalsIgnoreCase("ALL")
+                        ? TransactionType.valueOf(request[2].toUpperCase()) : null;
+                return service.history(request[1],
+                        request.length > 5 ? Long.parseLong(request[5]) : Long.MIN_VALUE,
+                        request.length > 6 ? Long.parseLong(request[6]) : Long.MAX_VALUE, type,
+                        request.length > 3 ? Long.parseLong(request[3]) : 0,
+                        request.length > 4 ? Integer.parseInt(request[4]) : HISTORY_PAGE_SIZE);
+            case "LOAN":
+                return service.applyForLoan(request[1], request[2], Money.toCents(new BigDecimal(request[3])),
+                        Double.parseDouble(request[4]));
+            case "PAY":
+                return service.makeLoanPayment(request[1], request[2], Money.toCents(new BigDecimal(request[3])));
+            case "LOANBALANCE":
+                return service.loanBalance(request[1], request[2]);
+            default:
+                return ServiceResult.of(PostingStatus.UNSUPPORTED);
         }
     }
 
-    public void withdraw(double amount, int enteredPin) {
-        if (enteredPin != pin) {
-            System.out.println("Invalid PIN. Withdrawal not allowed.");
-            return;
+    private static String joinFrom(String[] request, int start) {
+        if (start >= request.length) {
+            throw new IllegalArgumentException("Missing name");
         }
+        return String.join(" ", Arrays.asList(request).subList(start, request.length));
+    }
 
-        if (amount > 0 && amount <= balance) {
-            balance -= amount;
-            recordTransaction(TransactionType.WITHDRAWAL, amount);
-            System.out.println("Withdrawn $" + amount + " from " + accountType + " account.");
-        } else {
-            System.out.println("Invalid withdrawal amount or insufficient funds.");
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdown();
+    }
+}
+
+// Client side of the BankServer protocol, so tools written against BankApi
+// can drive a remote bank. Each client owns one connection and is not
+// thread-safe; give every thread its own.
+class BankClient implements BankApi, AutoCloseable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final BufferedWriter out;
+
+    public BankClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    public ServiceResult createAccount(String accountNumber, String accountHolder, String accountType, int pin) {
+        return call("CREATE " + accountNumber + " " + pin + " " + accountType + " " + accountHolder, false);
+    }
+
+    public ServiceResult login(String accountNumber, int pin) {
+        return call("LOGIN " + accountNumber + " " + pin, true);
+    }
+
+    public void logout(String token) {
+        call("LOGOUT " + token, false);
+    }
+
+    public ServiceResult deposit(String token, long amount) {
+        return call("DEPOSIT " + token + " " + Money.format(amount), false);
+    }
+
+    public ServiceResult withdraw(String token, long amount) {
+        return call("WITHDRAW " + token + " " + Money.format(amount), false);
+    }
+
+    public ServiceResult transfer(String token, String toAccount, long amount) {
+        return call("TRANSFER " + token + " " + toAccount + " " + Money.format(amount), false);
+    }
+
+    public ServiceResult balance(String token) {
+        return call("BALANCE " + token, false);
+    }
+
+    public ServiceResult applyForLoan(String token, String loanID, long loanAmount, double interestRate) {
+        return call("LOAN " + token + " " + loanID + " " + Money.format(loanAmount) + " " + interestRate, false);
+    }
+
+    public ServiceResult makeLoanPayment(String token, String loanID, long amount) {
+        return call("PAY " + token + " " + loanID + " " + Money.format(amount), false);
+    }
+
+    public ServiceResult loanBalance(String token, String loanID) {
+        return call("LOANBALANCE " + token + " " + loanID, false);
+    }
+
+    private ServiceResult call(String request, boolean session) {
+        String reply;
+        try {
+            out.write(request);
+            out.newLine();
+            out.flush();
+            reply = in.readLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        if (reply == null) {
+            throw new UncheckedIOException(new IOException("Connection closed by server"));
+        }
+        String[] fields = reply.split(" ", 2);
+        if (!fields[0].equals("OK")) {
+            return ServiceResult.of(PostingStatus.valueOf(fields[1]));
+        }
+        return session ? ServiceResult.ofSession(fields[1])
+                : ServiceResult.of(PostingStatus.OK, Money.toCents(new BigDecimal(fields[1])));
     }
 
-    public void transfer(BankAccount recipient, double amount, int enteredPin, Scanner scanner) {
-        if (enteredPin != pin) {
-            System.out.println("Invalid PIN. Transfer not allowed.");
-            return;
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
+
+// Self-contained benchmark harness for the banking core. Each workload runs
+// for a fixed warmup and measurement time against a fresh in-memory Bank per
+// account count, single-threaded, spread over many threads, and contended on
+// a small hot set of accounts. Per-thread allocated bytes and GC activity are
+// sampled from the management beans. Results are appended as JSON lines so
+// runs from different versions can be compared. For JMH numbers, including
+// the history append every posting ends with, see src/jmh and pom.xml.
+class BankingBenchmark {
+    private static final int HOT_ACCOUNTS = 16;
+    private static final int MAX_LOANS = 1_000_000;
+    private static final long OPENING_BALANCE = 1_000_000_000_000L;
+
+    interface Workload {
+        void run(ThreadLocalRandom random, int account);
+    }
+
+    private final Map<String, String> options;
+    private final String label;
+    private final int[] accountCounts;
+    private final int[] threadCounts;
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final Path output;
+
+    BankingBenchmark(Map<String, String> options) {
+        this.options = options;
+        label = options.getOrDefault("label", "dev");
+        accountCounts = parseInts(options.getOrDefault("accounts", "1000,10000,100000,1000000,10000000"));
+        threadCounts = parseInts(options.getOrDefault("threads", "1," + Runtime.getRuntime().availableProcessors()));
+        warmupMillis = Long.parseLong(options.getOrDefault("warmup-ms", "1000"));
+        measureMillis = Long.parseLong(options.getOrDefault("measure-ms", "3000"));
+        output = Paths.get(options.getOrDefault("output", "bench-results.jsonl"));
+    }
+
+    // Options: --label <name> --accounts 1000,10000 --threads 1,8 --workloads deposit,transfer
+    //          --warmup-ms 1000 --measure-ms 3000 --output bench-results.jsonl
+    //          --velocity maxPostings,maxAmount,windowSeconds (checks every withdrawal and transfer)
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
         }
+        new BankingBenchmark(options).run();
+    }
 
-        // Use the same scanner object to capture the recipient's PIN
-        System.out.print("Enter recipient's PIN (4 digits): ");
-        int recipientPin = scanner.nextInt();
+    public void run() throws IOException, InterruptedException {
+        String selected = options.getOrDefault("workloads", "findAccount,deposit,withdraw,transfer,loanPayment");
+        try (BufferedWriter out = Files.newBufferedWriter(output, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (int accountCount : accountCounts) {
+                Bank bank = new Bank();
+                bank.setPinIterations(1);
+                if (options.containsKey("velocity")) {
+                    bank.setVelocityLimits(VelocityLimits.parse(options.get("velocity")));
+                }
+                String[] numbers = new String[accountCount];
+                BankAccount[] accounts = new BankAccount[accountCount];
+                for (int i = 0; i < accountCount; i++) {
+                    numbers[i] = "ACC" + i;
+                    bank.createAccount(numbers[i], "Holder " + i, "Checking", 1234);
+                    accounts[i] = bank.findAccount(numbers[i]);
+                    accounts[i].applyDeposit(OPENING_BALANCE);
+                }
+                int loanCount = Math.min(accountCount, MAX_LOANS);
+                Loan[] loans = new Loan[loanCount];
+                for (int i = 0; i < loanCount; i++) {
+                    bank.applyForLoan("LOAN" + i, "Holder " + i, OPENING_BALANCE, 0.0);
+                    loans[i] = bank.findLoan("LOAN" + i);
+                }
 
-        if (recipientPin == recipient.getPin()) {
-            if (amount > 0 && amount <= balance) {
-                balance -= amount;
-                recipient.depositToRecipient(amount);
-                recipient.deposit(amount, enteredPin);
-                recordTransaction(TransactionType.TRANSFER, amount);
-                System.out.println("Transferred $" + amount + " to account " + recipient.getAccountNumber());
-            } else {
-                System.out.println("Invalid transfer amount or insufficient funds.");
+                for (String name : selected.split(",")) {
+                    Workload workload = workload(name.trim(), bank, numbers, accounts, loans);
+                    for (int threads : threadCounts) {
+                        report(out, measure(name.trim(), workload, accountCount, threads, accountCount));
+                        if (threads > 1) {
+                            report(out, measure(name.trim() + "-contended", workload, accountCount, threads,
+                                    Math.min(HOT_ACCOUNTS, accountCount)));
+                        }
+                    }
+                }
             }
-        } else {
-            System.out.println("Invalid recipient PIN. Transfer not allowed.");
         }
     }
 
-    public void displayTransactionHistory() {
-        for (Transaction transaction : transactionHistory) {
-            System.out.println("Transaction Type: " + transaction.getType() + ", Amount: $" + transaction.getAmount());
+    private static Workload workload(String name, Bank bank, String[] numbers, BankAccount[] accounts, Loan[] loans) {
+        switch (name) {
+            case "findAccount":
+                return (random, account) -> {
+                    if (bank.findAccount(numbers[account]) == null) {
+                        throw new IllegalStateException("Missing account " + numbers[account]);
+                    }
+                };
+            case "deposit":
+                return (random, account) -> accounts[account].applyDeposit(100);
+            case "withdraw":
+                return (random, account) -> accounts[account].applyWithdrawal(100);
+            case "transfer":
+                return (random, account) -> {
+                    int other = random.nextInt(accounts.length);
+                    if (other != account) {
+                        TransferEngine.transfer(accounts[account], accounts[other], 100);
+                    }
+                };
+            case "loanPayment":
+                return (random, account) -> loans[account % loans.length].makePayment(1);
+            default:
+                throw new IllegalArgumentException("Unknown workload " + name);
         }
     }
 
-}
+    private Result measure(String name, Workload workload, int accountCount, int threadCount, int accountRange)
+            throws InterruptedException {
+        run(workload, threadCount, accountRange, warmupMillis);
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long[] totals = run(workload, threadCount, accountRange, measureMillis);
+        long elapsedNanos = totals[2];
+        Result result = new Result();
+        result.name = name;
+        result.accounts = accountCount;
+        result.threads = threadCount;
+        result.operations = totals[0];
+        result.opsPerSecond = totals[0] / (elapsedNanos / 1e9);
+        result.nanosPerOp = (double) elapsedNanos * threadCount / Math.max(1, totals[0]);
+        result.bytesPerOp = (double) totals[1] / Math.max(1, totals[0]);
+        result.gcCount = gcCount() - gcCount;
+        result.gcMillis = gcMillis() - gcMillis;
+        return result;
+    }
 
-class Transaction {
-    private TransactionType type;
-    private double amount;
+    // Returns {operations, allocated bytes, elapsed nanos} summed over all threads.
+    private static long[] run(Workload workload, int threadCount, int accountRange, long millis) throws InterruptedException {
+        AtomicLong operations = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(threadCount);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] stopAt = new long[1];
+        Thread[] threads = new Thread[threadCount];
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long deadline = stopAt[0];
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                long count = 0;
+                do {
+                    for (int i = 0; i < 256; i++) {
+                        workload.run(random, random.nextInt(accountRange));
+                    }
+                    count += 256;
+                } while (System.nanoTime() < deadline);
+                allocated.addAndGet(threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+                operations.addAndGet(count);
+            }, "bench-" + t);
+            threads[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        stopAt[0] = start + millis * 1_000_000;
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[] {operations.get(), allocated.get(), System.nanoTime() - start};
+    }
 
-    public Transaction(TransactionType type, double amount) {
-        this.type = type;
-        this.amount = amount;
+    private void report(BufferedWriter out, Result result) throws IOException {
+        System.out.printf("%-28s accounts=%-9d threads=%-3d %,14.0f ops/s %10.1f ns/op %8.1f B/op gc=%d (%d ms)%n",
+                result.name, result.accounts, result.threads, result.opsPerSecond, result.nanosPerOp, result.bytesPerOp,
+                result.gcCount, result.gcMillis);
+        out.write(String.format(Locale.ROOT,
+                "{\"label\":\"%s\",\"benchmark\":\"%s\",\"accounts\":%d,\"threads\":%d,\"operations\":%d,"
+                        + "\"opsPerSecond\":%.1f,\"nanosPerOp\":%.2f,\"bytesPerOp\":%.2f,\"gcCount\":%d,\"gcMillis\":%d}",
+                label, result.name, result.accounts, result.threads, result.operations, result.opsPerSecond,
+                result.nanosPerOp, result.bytesPerOp, result.gcCount, result.gcMillis));
+        out.newLine();
+        out.flush();
     }
 
-    public TransactionType getType() {
-        return type;
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
     }
 
-    public double getAmount() {
-        return amount;
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
     }
-}
 
-class Loan {
-    private String loanID;
-    private String borrower;
-    private double loanAmount;
-    private double interestRate;
-    private double remainingAmount;
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
 
-    public Loan(String loanID, String borrower, double loanAmount, double interestRate) {
-        this.loanID = loanID;
-        this.borrower = borrower;
-        this.loanAmount = loanAmount;
-        this.interestRate = interestRate;
-        this.remainingAmount = loanAmount;
+    private static class Result {
+        String name;
+        int accounts;
+        int threads;
+        long operations;
+        double opsPerSecond;
+        double nanosPerOp;
+        double bytesPerOp;
+        long gcCount;
+        long gcMillis;
     }
+}
 
-    public String getLoanID() {
-        return loanID;
+// Draws ranks 0..n-1 with Zipfian popularity: rank 0 is the most popular
+// and rank k is chosen roughly in proportion to 1/(k+1)^theta. Uses the
+// constant-time method of Gray et al. ("Quickly generating billion-record
+// synthetic databases"), so only the setup is O(n). Theta 0 is uniform.
+class ZipfianGenerator {
+    private final int n;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final double secondThreshold;
+
+    public ZipfianGenerator(int n, double theta) {
+        if (n <= 0 || theta < 0 || theta >= 1) {
+            throw new IllegalArgumentException("Need n > 0 and 0 <= theta < 1");
+        }
+        this.n = n;
+        this.theta = theta;
+        double zeta = 0;
+        for (int i = 1; i <= n; i++) {
+            zeta += 1 / Math.pow(i, theta);
+        }
+        zetaN = zeta;
+        double zeta2 = 1 + 1 / Math.pow(2, theta);
+        alpha = 1 / (1 - theta);
+        eta = n < 2 ? 1 : (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+        secondThreshold = 1 + Math.pow(0.5, theta);
     }
 
-    public String getBorrower() {
-        return borrower;
+    public int next(ThreadLocalRandom random) {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < secondThreshold) {
+            return Math.min(1, n - 1);
+        }
+        return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
     }
 
-    public double getLoanAmount() {
-        return loanAmount;
+    public double getTheta() {
+        return theta;
     }
+}
 
-    public double getInterestRate() {
-        return interestRate;
+// Replays a production-like load against the bank. It creates a population
+// of accounts and loans through BankApi, then has many clients issue a
+// weighted mix of operations for a fixed time, picking
+// accounts and loans with Zipfian popularity. It reports throughput and
+// client-side latency per operation. At the end it checks that account and
+// loan totals match what the successful operations imply. Runs in process
+// against a fresh Bank, or against a BankServer with --connect.
+class LoadDriver {
+    private static final BankOperation[] OPERATIONS = {
+        BankOperation.DEPOSIT, BankOperation.WITHDRAWAL, BankOperation.TRANSFER, BankOperation.BALANCE,
+        BankOperation.LOAN_PAYMENT
+    };
+    private static final long OPENING_BALANCE = 100_000_000L;
+    private static final long LOAN_AMOUNT = 1_000_000_000_000L;
+    private static final int MAX_AMOUNT = 10_000;
+    private static final int PIN = 1234;
+
+    private final int accountCount;
+    private final int loanCount;
+    private final int clientCount;
+    private final long durationMillis;
+    private final double interestRate;
+    private final ZipfianGenerator accountPicker;
+    private final ZipfianGenerator loanPicker;
+    private final int[] cumulativeWeights;
+    private final String host;
+    private final int port;
+
+    private final String[] accounts;
+    private final AtomicReferenceArray<String> tokens;
+    private final String[] loans;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] succeeded = new LongAdder[OPERATIONS.length];
+    private final LongAdder[] failed = new LongAdder[OPERATIONS.length];
+    private final LongAdder deposited = new LongAdder();
+    private final LongAdder withdrawn = new LongAdder();
+    private final LongAdder loanPaid = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    LoadDriver(Map<String, String> options) {
+        accountCount = Integer.parseInt(options.getOrDefault("accounts", "10000"));
+        loanCount = Integer.parseInt(options.getOrDefault("loans", "1000"));
+        clientCount = Integer.parseInt(options.getOrDefault("clients", "64"));
+        durationMillis = (long) (Double.parseDouble(options.getOrDefault("seconds", "10")) * 1000);
+        interestRate = Double.parseDouble(options.getOrDefault("rate", "6.5"));
+        double theta = Double.parseDouble(options.getOrDefault("zipf", "0.99"));
+        accountPicker = new ZipfianGenerator(accountCount, theta);
+        loanPicker = new ZipfianGenerator(loanCount, theta);
+        cumulativeWeights = parseMix(options.getOrDefault("mix", "deposit=20,withdrawal=20,transfer=30,balance=25,loan_payment=5"));
+        String connect = options.get("connect");
+        if (connect != null) {
+            int colon = connect.lastIndexOf(':');
+            host = colon > 0 ? connect.substring(0, colon) : "localhost";
+            port = Integer.parseInt(connect.substring(colon + 1));
+        } else {
+            host = null;
+            port = 0;
+        }
+        accounts = new String[accountCount];
+        tokens = new AtomicReferenceArray<>(accountCount);
+        loans = new String[loanCount];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            succeeded[i] = new LongAdder();
+            failed[i] = new LongAdder();
+        }
     }
 
-    public double getRemainingAmount() {
-        return remainingAmount;
+    // Options: --accounts 10000 --loans 1000 --clients 64 --seconds 10 --zipf 0.99 --rate 6.5
+    //          --mix deposit=20,withdrawal=20,transfer=30,balance=25,loan_payment=5
+    //          --connect host:port (drive a BankServer; start it with -Dbank.pinIterations=1
+    //          for large populations, since every account logs in once during setup)
+    // Returns whether the totals were consistent.
+    public static boolean run(String[] args) throws InterruptedException, IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        return new LoadDriver(options).drive();
     }
 
-    public void makePayment(double amount) {
-        if (amount > 0 && remainingAmount > 0) {
-            double interest = remainingAmount * (interestRate / 100);
-            double totalPayment = amount + interest;
-            if (totalPayment <= remainingAmount) {
-                remainingAmount -= totalPayment;
-                System.out.println("Payment of $" + amount + " made. Remaining loan balance: $" + remainingAmount);
-            } else {
-                System.out.println("Payment exceeds the remaining loan balance.");
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            BankOperation operation = BankOperation.valueOf(parts[0].trim().toUpperCase());
+            int index = Arrays.asList(OPERATIONS).indexOf(operation);
+            if (index < 0) {
+                throw new IllegalArgumentException("Load mix cannot include " + parts[0]);
             }
-        } else {
-            System.out.println("Invalid payment or loan already paid off.");
+            weights[index] = Integer.parseInt(parts[1].trim());
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
         }
+        if (weights[weights.length - 1] <= 0) {
+            throw new IllegalArgumentException("Load mix is empty");
+        }
+        return weights;
     }
-}
 
-class Bank {
-    private List<BankAccount> accounts;
-    private List<Loan> loans;
-    private Map<String, Integer> accountPINs;
+    public boolean drive() throws InterruptedException, IOException {
+        BankService service = null;
+        if (host == null) {
+            Bank bank = new Bank();
+            bank.setPinIterations(1);
+            service = new BankService(bank, new SessionCache(accountCount, TimeUnit.HOURS.toMillis(1)));
+        }
+        long setupStart = System.nanoTime();
+        BankClient setupClient = host == null ? null : new BankClient(host, port);
+        try {
+            populate(setupClient != null ? setupClient : service);
+        } finally {
+            if (setupClient != null) {
+                setupClient.close();
+            }
+        }
+        System.out.printf("Created %,d accounts and %,d loans in %.1f s%n", accountCount, loanCount,
+                (System.nanoTime() - setupStart) / 1e9);
 
-    public Bank() {
-        accounts = new ArrayList<>();
-        loans = new ArrayList<>();
-        accountPINs = new HashMap<>();
+        BankService inProcess = service;
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        // Virtual threads are not time-sliced, and in process a client never
+        // blocks on I/O, so one could keep its carrier for the whole run; give
+        // each client an OS thread there instead.
+        try (ExecutorService clients = host == null ? Executors.newFixedThreadPool(clientCount)
+                : Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clientCount; c++) {
+                clients.submit(() -> {
+                    try (BankClient client = host == null ? null : new BankClient(host, port)) {
+                        runClient(client != null ? client : inProcess, deadline);
+                    } catch (IOException | RuntimeException e) {
+                        errors.increment();
+                        System.out.println("Client failed: " + e);
+                    }
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        BankClient checkClient = host == null ? null : new BankClient(host, port);
+        try {
+            report(elapsed);
+            return checkTotals(checkClient != null ? checkClient : service);
+        } finally {
+            if (checkClient != null) {
+                checkClient.close();
+            }
+        }
     }
 
-    public void createAccount(String accountNumber, String accountHolder, String accountType, int pin) {
-        BankAccount account = new BankAccount(accountNumber, accountHolder, accountType, pin);
-        accounts.add(account);
-        accountPINs.put(accountNumber, pin);
-        System.out.println("Account created successfully.");
+    private void populate(BankApi api) {
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = "L" + run + "-" + i;
+            expectOk(api.createAccount(accounts[i], "Load " + i, "Checking", PIN), "create account");
+            tokens.set(i, expectOk(api.login(accounts[i], PIN), "login").getToken());
+            expectOk(api.deposit(tokens.get(i), OPENING_BALANCE), "opening deposit");
+        }
+        // Loan i belongs to account i % accountCount, which makes its payments.
+        for (int i = 0; i < loanCount; i++) {
+            loans[i] = "L" + run + "-LOAN" + i;
+            expectOk(api.applyForLoan(tokens.get(i % accountCount), loans[i], LOAN_AMOUNT, interestRate), "apply for loan");
+        }
     }
 
-    public BankAccount findAccount(String accountNumber) {
-        for (BankAccount account : accounts) {
-            if (account.getAccountNumber().equals(accountNumber)) {
-                return account;
-            }
+    private static ServiceResult expectOk(ServiceResult result, String step) {
+        if (!result.isOk()) {
+            throw new IllegalStateException("Setup failed to " + step + ": " + result.getStatus());
         }
-        return null;
+        return result;
     }
 
-    public boolean verifyPIN(String accountNumber, int enteredPin) {
+    private void runClient(BankApi api, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int total = cumulativeWeights[cumulativeWeights.length - 1];
+        while (System.nanoTime() < deadline) {
+            int pick = random.nextInt(total);
+            int op = 0;
+            while (cumulativeWeights[op] <= pick) {
+                op++;
+            }
+            int loan = 0;
+            int account;
+            if (OPERATIONS[op] == BankOperation.LOAN_PAYMENT) {
+                loan = loanPicker.next(random);
+                account = loan % accountCount;
+            } else {
+                account = accountPicker.next(random);
+            }
+            long amount = 1 + random.nextInt(MAX_AMOUNT);
+            long start = System.nanoTime();
+            ServiceResult result = issue(api, op, account, loan, amount, random);
+            if (result.getStatus() == PostingStatus.INVALID_SESSION) {
+                tokens.set(account, api.login(accounts[account], PIN).getToken());
+                result = issue(api, op, account, loan, amount, random);
+            }
+            latencies[op].record(System.nanoTime() - start);
+            if (result.isOk()) {
+                succeeded[op].increment();
+            } else {
+                failed[op].increment();
+            }
+        }
+    }
 
-        Integer storedPin = accountPINs.get(accountNumber);
-        return storedPin != null && storedPin == enteredPin;
+    private ServiceResult issue(BankApi api, int op, int account, int loan, long amount, ThreadLocalRandom random) {
+        String token = tokens.get(account);
+        switch (OPERATIONS[op]) {
+            case DEPOSIT: {
+                ServiceResult result = api.deposit(token, amount);
+                if (result.isOk()) {
+                    deposited.add(amount);
+                }
+                return result;
+            }
+            case WITHDRAWAL: {
+                ServiceResult result = api.withdraw(token, amount);
+                if (result.isOk()) {
+                    withdrawn.add(amount);
+                }
+                return result;
+            }
+            case TRANSFER: {
+                int other = accountPicker.next(random);
+                if (other == account) {
+                    other = (account + 1) % accountCount;
+                }
+                return api.transfer(token, accounts[other], amount);
+            }
+            case BALANCE:
+                return api.balance(token);
+            default: {
+                ServiceResult result = api.makeLoanPayment(token, loans[loan], amount);
+                if (result.isOk()) {
+                    loanPaid.add(amount);
+                }
+                return result;
+            }
+        }
     }
 
-    public void applyForLoan(String loanID, String borrower, double loanAmount, double interestRate) {
-        Loan loan = new Loan(loanID, borrower, loanAmount, interestRate);
-        loans.add(loan);
-        System.out.println("Loan application approved. Loan ID: " + loan.getLoanID());
+    private void report(long elapsedNanos) {
+        long operations = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            operations += succeeded[i].sum() + failed[i].sum();
+        }
+        System.out.printf("%,d clients, accounts zipf %.2f, %s%n", clientCount, accountPicker.getTheta(),
+                host == null ? "in process" : "server " + host + ":" + port);
+        System.out.printf("Throughput: %,.0f ops/s (%,d operations in %.1f s)%n", operations / (elapsedNanos / 1e9),
+                operations, elapsedNanos / 1e9);
+        System.out.printf("%-14s %12s %10s %10s %10s %10s %10s %10s%n", "operation", "ok", "failed",
+                "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            long[] totals = histogram.snapshot();
+            System.out.printf("%-14s %,12d %,10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", OPERATIONS[i],
+                    succeeded[i].sum(), failed[i].sum(), histogram.percentile(totals, 50) / 1e3,
+                    histogram.percentile(totals, 90) / 1e3, histogram.percentile(totals, 99) / 1e3,
+                    histogram.percentile(totals, 99.9) / 1e3, histogram.getMax() / 1e3);
+        }
+        if (errors.sum() > 0) {
+            System.out.println(errors.sum() + " clients stopped on errors.");
+        }
     }
 
-    public Loan findLoan(String loanID) {
-        for (Loan loan : loans) {
-            if (loan.getLoanID().equals(loanID)) {
-                return loan;
+    // Transfers move money between accounts, so the account total changes
+    // only by deposits and withdrawals. Interest is only added by accrual,
+    // which the driver never runs, so loans drop only by payments. Both
+    // totals are read back from the bank.
+    private boolean checkTotals(BankApi api) {
+        long expectedAccounts = OPENING_BALANCE * accountCount + deposited.sum() - withdrawn.sum();
+        long actualAccounts = 0;
+        for (int i = 0; i < accountCount; i++) {
+            ServiceResult result = api.balance(tokens.get(i));
+            if (result.getStatus() == PostingStatus.INVALID_SESSION) {
+                tokens.set(i, api.login(accounts[i], PIN).getToken());
+                result = api.balance(tokens.get(i));
+            }
+            actualAccounts += expectOk(result, "read balance").getBalance();
+        }
+        long expectedLoans = LOAN_AMOUNT * loanCount - loanPaid.sum();
+        long actualLoans = 0;
+        for (int i = 0; i < loanCount; i++) {
+            int borrower = i % accountCount;
+            ServiceResult result = api.loanBalance(tokens.get(borrower), loans[i]);
+            if (result.getStatus() == PostingStatus.INVALID_SESSION) {
+                tokens.set(borrower, api.login(accounts[borrower], PIN).getToken());
+                result = api.loanBalance(tokens.get(borrower), loans[i]);
             }
+            actualLoans += expectOk(result, "read loan balance").getBalance();
         }
-        return null;
+        System.out.println("Accounts: expected $" + Money.format(expectedAccounts) + ", actual $" + Money.format(actualAccounts));
+        System.out.println("Loans: expected $" + Money.format(expectedLoans) + ", actual $" + Money.format(actualLoans));
+        return expectedAccounts == actualAccounts && expectedLoans == actualLoans && errors.sum() == 0;
     }
 }
 
 public class OnlineBankingSystem {
+    private static final int HISTORY_PAGE_SIZE = 20;
+
+    // The console's current login; the PIN is asked for again only when the
+    // user switches accounts or the session has expired.
+    private static String sessionAccount;
+    private static String sessionToken;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length > 0 && args[0].equals("--stress-transfers")) {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            boolean conserved = TransferStressCheck.run(64, threads, 200_000);
+            System.out.println(conserved ? "Total money conserved." : "Total money NOT conserved!");
+            System.exit(conserved ? 0 : 1);
+        }
+
+        if (args.length > 0 && args[0].equals("--stress-sharded")) {
+            int shards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+            int clients = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+            Path directory = args.length > 3 ? Paths.get(args[3]) : null;
+            boolean conserved = TransferStressCheck.runSharded(directory, shards, 10_000, clients, 5_000);
+            System.out.println(conserved ? "Total money conserved." : "Total money NOT conserved!");
+            System.exit(conserved ? 0 : 1);
+        }
+
+        if (args.length > 0 && args[0].equals("--stress-batch")) {
+            int partitions = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+            boolean matched = TransferStressCheck.runBatchReplay(200, 100_000, partitions);
+            System.out.println(matched ? "Parallel batch matches sequential replay." : "Parallel batch does NOT match sequential replay!");
+            System.exit(matched ? 0 : 1);
+        }
+
+        if (args.length > 0 && args[0].equals("--check-loans")) {
+            boolean matched = true;
+            for (double rate : new double[] {0, 3.75, 6.5, 12.99, 29.9}) {
+                for (int months : new int[] {1, 12, 60, 360}) {
+                    matched &= LoanInterestCheck.run(25_000_00, rate, months);
+                }
+            }
+            System.out.println(matched ? "Loan accrual and payments match the schedules." : "Loan accrual and payments do NOT match the schedules!");
+            System.exit(matched ? 0 : 1);
+        }
+
+        if (args.length > 0 && args[0].equals("--bench")) {
+            BankingBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--load")) {
+            boolean consistent = LoadDriver.run(Arrays.copyOfRange(args, 1, args.length));
+            System.out.println(consistent ? "Totals consistent." : "Totals NOT consistent!");
+            System.exit(consistent ? 0 : 1);
+        }
+
+        Path dataDir = Paths.get(System.getProperty("bank.dataDir", "bank-data"));
+        Bank bank = new Bank(dataDir);
+        startMetrics(dataDir);
+        String velocity = System.getProperty("bank.velocity");
+        if (velocity != null) {
+            bank.setVelocityLimits(VelocityLimits.parse(velocity));
+        }
+
+        if (args.length >= 3 && args[0].equals("--batch")) {
+            int partitions = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            BatchPoster poster = new BatchPoster(bank, partitions);
+            poster.run(Paths.get(args[1]), Paths.get(args[2]));
+            poster.printSummary();
+            System.out.print(BankMetrics.GLOBAL.dump());
+            bank.close();
+            return;
+        }
+
+        if (args.length >= 1 && args[0].equals("--accrue")) {
+            int days = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+            AccrualResult result = bank.accrueInterest(days);
+            System.out.println("Accrued $" + Money.format(result.getTotalInterest()) + " of interest on " + result.getLoans()
+                    + " loans in " + result.getElapsedNanos() / 1_000_000 + " ms (" + (long) result.getLoansPerSecond() + " loans/sec).");
+            bank.close();
+            return;
+        }
+
+        if (args.length >= 2 && args[0].equals("--amortize")) {
+            int months = Integer.parseInt(args[1]);
+            if (args.length > 2) {
+                Loan loan = bank.findLoan(args[2]);
+                if (loan == null) {
+                    System.out.println("Loan not found.");
+                } else {
+                    printSchedule(loan.amortizationSchedule(months));
+                }
+            } else {
+                long start = System.nanoTime();
+                long totalInterest = 0;
+                for (Loan loan : bank.getLoans()) {
+                    totalInterest += loan.amortizationSchedule(months).getTotalInterest();
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println("Generated " + bank.getLoanCount() + " schedules of " + months + " months in " + elapsed / 1_000_000
+                        + " ms (" + (long) (bank.getLoanCount() / (elapsed / 1e9)) + " schedules/sec); projected interest $"
+                        + Money.format(totalInterest) + ".");
+            }
+            bank.close();
+            return;
+        }
+
+        if (args.length >= 1 && args[0].equals("--totals")) {
+            int days = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+            BankAggregates aggregates = bank.getAggregates();
+            System.out.println("Deposits held: $" + Money.format(aggregates.getDepositsHeld()));
+            System.out.println("Outstanding loans: $" + Money.format(aggregates.getOutstandingLoans()));
+            long today = BankAggregates.epochDay(System.currentTimeMillis());
+            for (long day = today - Math.min(days, BankAggregates.DAYS) + 1; day <= today; day++) {
+                StringBuilder line = new StringBuilder(LocalDate.ofEpochDay(day).toString());
+                for (TransactionType type : TransactionType.values()) {
+                    line.append("  ").append(type).append(' ').append(aggregates.getDailyCount(type, day))
+                            .append(" / $").append(Money.format(aggregates.getDailyVolume(type, day)));
+                }
+                System.out.println(line);
+            }
+            bank.close();
+            return;
+        }
+
+        if (args.length >= 2 && args[0].equals("--statements")) {
+            YearMonth month = args.length > 2 ? YearMonth.parse(args[2]) : YearMonth.now(ZoneOffset.UTC).minusMonths(1);
+            long from = month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            long to = month.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            StatementResult result = new StatementGenerator(bank.getAccounts(), Paths.get(args[1]), from, to)
+                    .run(ForkJoinPool.commonPool());
+            System.out.println("Wrote " + result.getStatements() + " statements for " + month + " (" + result.getTransactions()
+                    + " transactions, " + result.getBytes() / (1024 * 1024) + " MB) into " + result.getFiles() + " files in "
+                    + result.getElapsedNanos() / 1_000_000 + " ms (" + (long) result.getStatementsPerSecond() + " statements/sec).");
+            bank.close();
+            return;
+        }
+
+        if (args.length >= 2 && args[0].equals("--snapshot")) {
+            BankSnapshot snapshot = bank.snapshot();
+            try (BufferedWriter out = Files.newBufferedWriter(Paths.get(args[1]))) {
+                out.write("account,balance");
+                out.newLine();
+                for (int i = 0; i < snapshot.size(); i++) {
+                    out.write(snapshot.getAccountNumber(i) + "," + Money.format(snapshot.getBalance(i)));
+                    out.newLine();
+                }
+            }
+            System.out.println("Wrote " + snapshot.size() + " balances totalling $" + Money.format(snapshot.getTotalBalance())
+                    + " as of epoch " + snapshot.getEpoch() + ".");
+            bank.close();
+            return;
+        }
+
+        BankService service = new BankService(bank);
+        System.out.println("Loaded " + bank.getAccountCount() + " accounts and " + bank.getLoanCount() + " loans.");
+
+        if (args.length >= 2 && args[0].equals("--serve")) {
+            BankServer server = new BankServer(service, Integer.parseInt(args[1]));
+            System.out.println("Listening on port " + server.getPort());
+            server.serve();
+            return;
+        }
 
-    public static void main(String[] args) {
-        Map<String, BankAccount> accounts = new HashMap<>();
-        Scanner trans = new Scanner(System.in);
-        Bank bank = new Bank();
         Scanner scanner = new Scanner(System.in);
 
         while (true) {
@@ -266,7 +5360,7 @@ public class OnlineBankingSystem {
             scanner.nextLine(); // Consume the newline character
 
             switch (choice) {
-                case 1:
+                case 1: {
                     System.out.print("Enter account number: ");
                     String accNumber = scanner.nextLine();
                     System.out.print("Enter account holder name: ");
@@ -275,120 +5369,281 @@ public class OnlineBankingSystem {
                     String accType = scanner.nextLine();
                     System.out.print("Enter your PIN (4 digits): ");
                     int pin = scanner.nextInt();
-                    bank.createAccount(accNumber, accHolder, accType, pin);
+                    ServiceResult result = service.createAccount(accNumber, accHolder, accType, pin);
+                    if (result.isOk()) {
+                        System.out.println("Account created successfully.");
+                    } else {
+                        System.out.println("Account number " + accNumber + " already exists.");
+                    }
                     break;
-                case 2:
+                }
+                case 2: {
                     System.out.print("Enter account number: ");
                     String depositAccNumber = scanner.nextLine();
-                    BankAccount depositAccount = bank.findAccount(depositAccNumber);
-                    if (depositAccount != null) {
+                    if (service.accountExists(depositAccNumber)) {
+                        String token = login(service, scanner, depositAccNumber);
+                        if (token == null) {
+                            break;
+                        }
                         System.out.print("Enter deposit amount: ");
-                        double amount = scanner.nextDouble();
-                        System.out.print("Enter your PIN (4 digits): ");
-                        int enteredPin = scanner.nextInt();
-                        depositAccount.deposit(amount, enteredPin);
+                        long amount = Money.toCents(scanner.nextBigDecimal());
+                        ServiceResult result = service.deposit(token, amount);
+                        if (result.isOk()) {
+                            System.out.println("Deposited $" + Money.format(amount) + " into account " + depositAccNumber + ".");
+                        } else {
+                            printFailure("Deposit", result.getStatus());
+                        }
                     } else {
                         System.out.println("Account not found.");
                     }
                     break;
-                case 3:
+                }
+                case 3: {
                     System.out.print("Enter account number: ");
                     String withdrawAccNumber = scanner.nextLine();
-                    BankAccount withdrawAccount = bank.findAccount(withdrawAccNumber);
-                    if (withdrawAccount != null) {
+                    if (service.accountExists(withdrawAccNumber)) {
+                        String token = login(service, scanner, withdrawAccNumber);
+                        if (token == null) {
+                            break;
+                        }
                         System.out.print("Enter withdrawal amount: ");
-                        double amount = scanner.nextDouble();
-                        System.out.print("Enter your PIN (4 digits): ");
-                        int enteredPin = scanner.nextInt();
-                        withdrawAccount.withdraw(amount, enteredPin);
+                        long amount = Money.toCents(scanner.nextBigDecimal());
+                        ServiceResult result = service.withdraw(token, amount);
+                        if (result.isOk()) {
+                            System.out.println("Withdrawn $" + Money.format(amount) + " from account " + withdrawAccNumber + ".");
+                        } else {
+                            printFailure("Withdrawal", result.getStatus());
+                        }
                     } else {
                         System.out.println("Account not found.");
                     }
                     break;
-                case 4:
+                }
+                case 4: {
+                    System.out.print("Enter borrower's account number: ");
+                    String borrowerAccNumber = scanner.nextLine();
                     System.out.print("Enter loan ID: ");
                     String loanID = scanner.nextLine();
-                    System.out.print("Enter borrower name: ");
-                    String borrower = scanner.nextLine();
+                    if (!service.accountExists(borrowerAccNumber)) {
+                        System.out.println("Account not found.");
+                        break;
+                    }
+                    String token = login(service, scanner, borrowerAccNumber);
+                    if (token == null) {
+                        break;
+                    }
                     System.out.print("Enter loan amount: ");
-                    double loanAmount = scanner.nextDouble();
+                    long loanAmount = Money.toCents(scanner.nextBigDecimal());
                     System.out.print("Enter interest rate (%): ");
                     double interestRate = scanner.nextDouble();
-                    bank.applyForLoan(loanID, borrower, loanAmount, interestRate);
+                    ServiceResult result = service.applyForLoan(token, loanID, loanAmount, interestRate);
+                    if (result.isOk()) {
+                        System.out.println("Loan application approved. Loan ID: " + loanID);
+                    } else if (result.getStatus() == PostingStatus.DUPLICATE_LOAN) {
+                        System.out.println("Loan ID " + loanID + " already exists.");
+                    } else {
+                        printFailure("Loan application", result.getStatus());
+                    }
                     break;
-                case 5:
+                }
+                case 5: {
+                    System.out.print("Enter borrower's account number: ");
+                    String borrowerAccNumber = scanner.nextLine();
                     System.out.print("Enter loan ID: ");
                     String paymentLoanID = scanner.nextLine();
-                    Loan paymentLoan = bank.findLoan(paymentLoanID);
-                    if (paymentLoan != null) {
+                    if (service.accountExists(borrowerAccNumber) && service.loanExists(paymentLoanID)) {
+                        String token = login(service, scanner, borrowerAccNumber);
+                        if (token == null) {
+                            break;
+                        }
                         System.out.print("Enter payment amount: ");
-                        double paymentAmount = scanner.nextDouble();
-                        paymentLoan.makePayment(paymentAmount);
+                        long paymentAmount = Money.toCents(scanner.nextBigDecimal());
+                        ServiceResult result = service.makeLoanPayment(token, paymentLoanID, paymentAmount);
+                        if (result.isOk()) {
+                            System.out.println("Payment of $" + Money.format(paymentAmount) + " made. Remaining loan balance: $"
+                                    + Money.format(result.getBalance()));
+                        } else if (result.getStatus() == PostingStatus.LOAN_NOT_FOUND) {
+                            System.out.println("Loan not found.");
+                        } else {
+                            printFailure("Payment", result.getStatus());
+                        }
                     } else {
-                        System.out.println("Loan not found.");
+                        System.out.println("Account or loan not found.");
                     }
                     break;
-                case 6:
+                }
+                case 6: {
                     System.out.print("Enter sender's account number: ");
-                    String senderAccNumber = trans.nextLine();
-                    BankAccount senderAccount = bank.findAccount(senderAccNumber);
-
+                    String senderAccNumber = scanner.nextLine();
                     System.out.print("Enter recipient's account number: ");
-                    String recipientAccNumber = trans.nextLine();
-                    BankAccount recipientAccount = bank.findAccount(recipientAccNumber);
+                    String recipientAccNumber = scanner.nextLine();
 
-                    if (senderAccount != null && recipientAccount != null) {
-                        System.out.print("Enter your PIN (4 digits): ");
-                        int enteredPin = scanner.nextInt();
+                    if (service.accountExists(senderAccNumber) && service.accountExists(recipientAccNumber)) {
+                        String token = login(service, scanner, senderAccNumber);
+                        if (token == null) {
+                            break;
+                        }
                         System.out.print("Enter transfer amount: ");
-                        double amount = trans.nextDouble();
-                        senderAccount.transfer(recipientAccount, amount, enteredPin, scanner); // Pass scanner here
+                        long amount = Money.toCents(scanner.nextBigDecimal());
+                        ServiceResult result = service.transfer(token, recipientAccNumber, amount);
+                        if (result.isOk()) {
+                            System.out.println("Transferred $" + Money.format(amount) + " to account " + recipientAccNumber);
+                        } else {
+                            printFailure("Transfer", result.getStatus());
+                        }
                     } else {
                         System.out.println("Sender or recipient account not found.");
                     }
                     break;
-
-                case 7:
+                }
+                case 7: {
                     System.out.print("Enter account number for balance inquiry: ");
                     String inquiryAccNumber = scanner.nextLine();
-                    BankAccount inquiryAccount = bank.findAccount(inquiryAccNumber);
-                    if (inquiryAccount != null) {
-                        System.out.print("Enter your PIN (4 digits): ");
-                        int enteredPin = scanner.nextInt();
-                        if (inquiryAccount.getPin() == enteredPin) {
-                            double balance = inquiryAccount.getBalance();
-                            System.out.println("Account " + inquiryAccNumber + " has a balance of $" + balance);
+                    if (service.accountExists(inquiryAccNumber)) {
+                        String token = login(service, scanner, inquiryAccNumber);
+                        if (token == null) {
+                            break;
+                        }
+                        ServiceResult result = service.balance(token);
+                        if (result.isOk()) {
+                            System.out.println("Account " + inquiryAccNumber + " has a balance of $" + Money.format(result.getBalance()));
                         } else {
-                            System.out.println("Invalid PIN. Balance inquiry not allowed.");
+                            printFailure("Balance inquiry", result.getStatus());
                         }
                     } else {
                         System.out.println("Account not found.");
                     }
                     break;
-                case 8:
+                }
+                case 8: {
                     System.out.print("Enter account number for transaction history: ");
                     String historyAccNumber = scanner.nextLine();
-                    BankAccount historyAccount = bank.findAccount(historyAccNumber);
-                    if (historyAccount != null) {
-                        System.out.print("Enter your PIN (4 digits): ");
-                        int enteredPin = scanner.nextInt();
-                        if (historyAccount.getPin() == enteredPin) {
-                            historyAccount.displayTransactionHistory();
-                        } else {
-                            System.out.println("Invalid PIN. Transaction history not allowed.");
+                    if (service.accountExists(historyAccNumber)) {
+                        String token = login(service, scanner, historyAccNumber);
+                        if (token == null) {
+                            break;
+                        }
+                        System.out.print("Enter transaction type to show (ALL, DEPOSIT, WITHDRAWAL, TRANSFER, LOAN_PAYMENT): ");
+                        String typeName = scanner.next().toUpperCase();
+                        TransactionType type = null;
+                        if (!typeName.equals("ALL")) {
+                            try {
+                                type = TransactionType.valueOf(typeName);
+                            } catch (IllegalArgumentException e) {
+                                System.out.println("Unknown transaction type.");
+                                break;
+                            }
+                        }
+                        long cursor = 0;
+                        while (true) {
+                            ServiceResult result = service.history(token, Long.MIN_VALUE, Long.MAX_VALUE,
+                                    type, cursor, HISTORY_PAGE_SIZE);
+                            if (!result.isOk()) {
+                                printFailure("Transaction history", result.getStatus());
+                                break;
+                            }
+                            for (Transaction transaction : result.getTransactions()) {
+                                System.out.println("Transaction Type: " + transaction.getType() + ", Amount: $"
+                                        + Money.format(transaction.getAmount()));
+                            }
+                            if (!result.hasMore()) {
+                                break;
+                            }
+                            System.out.print("Show more? (y/n): ");
+                            if (!scanner.next().equalsIgnoreCase("y")) {
+                                break;
+                            }
+                            cursor = result.getNextCursor();
                         }
                     } else {
                         System.out.println("Account not found.");
                     }
                     break;
+                }
                 case 9:
                     System.out.println("Exiting...");
+                    service.logout(sessionToken);
+                    bank.close();
                     scanner.close();
                     System.exit(0);
+                    break;
                 default:
                     System.out.println("Invalid choice.");
 
             }
         }
     }
+
+    private static void printSchedule(AmortizationSchedule schedule) {
+        System.out.println("Month, Payment, Interest, Principal, Balance");
+        for (int m = 0; m < schedule.getMonths(); m++) {
+            System.out.println((m + 1) + ", $" + Money.format(schedule.getPayment(m)) + ", $" + Money.format(schedule.getInterest(m))
+                    + ", $" + Money.format(schedule.getPrincipal(m)) + ", $" + Money.format(schedule.getBalance(m)));
+        }
+        System.out.println("Total interest: $" + Money.format(schedule.getTotalInterest()));
+    }
+
+    // Metrics are published over JMX and rewritten to metrics.txt in the data
+    // directory every -Dbank.metricsSeconds (default 60; 0 turns the file off).
+    private static void startMetrics(Path dataDir) {
+        try {
+            BankMetrics.GLOBAL.register();
+        } catch (JMException e) {
+            System.out.println("Metrics not published over JMX: " + e.getMessage());
+        }
+        long period = Long.getLong("bank.metricsSeconds", 60);
+        if (period > 0) {
+            BankMetrics.GLOBAL.startDump(dataDir.resolve("metrics.txt"), period);
+        }
+    }
+
+    // Returns the session token for accountNumber, asking for the PIN only if
+    // the console is not already logged in to that account; null if login failed.
+    private static String login(BankService service, Scanner scanner, String accountNumber) {
+        if (accountNumber.equals(sessionAccount) && service.isLoggedIn(sessionToken)) {
+            return sessionToken;
+        }
+        System.out.print("Enter your PIN (4 digits): ");
+        int pin = scanner.nextInt();
+        ServiceResult result = service.login(accountNumber, pin);
+        if (!result.isOk()) {
+            printFailure("Login", result.getStatus());
+            return null;
+        }
+        service.logout(sessionToken);
+        sessionAccount = accountNumber;
+        sessionToken = result.getToken();
+        return sessionToken;
+    }
+
+    private static void printFailure(String action, PostingStatus status) {
+        switch (status) {
+            case INVALID_PIN:
+                System.out.println("Invalid PIN. " + action + " not allowed.");
+                break;
+            case INVALID_SESSION:
+                System.out.println("Session expired. Please log in again.");
+                break;
+            case INVALID_AMOUNT:
+                System.out.println("Invalid amount. " + action + " not allowed.");
+                break;
+            case INSUFFICIENT_FUNDS:
+                System.out.println("Insufficient funds. " + action + " not allowed.");
+                break;
+            case VELOCITY_LIMIT:
+                System.out.println("Too many withdrawals or transfers in a short time. " + action + " not allowed.");
+                break;
+            case SAME_ACCOUNT:
+                System.out.println("Sender and recipient must be different accounts.");
+                break;
+            case PAYMENT_EXCEEDS_BALANCE:
+                System.out.println("Payment exceeds the remaining loan balance.");
+                break;
+            case LOAN_PAID_OFF:
+                System.out.println("Loan already paid off.");
+                break;
+            default:
+                System.out.println(action + " failed: " + status);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package bank;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The account postings from BankingBenchmark under JMH. Run with -t to pick
+// the thread count and -prof gc for allocation per operation. hotAccounts
+// narrows every thread onto the first few accounts to measure contention;
+// 0 spreads them over all accounts.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountBenchmark {
+    private static final long OPENING_BALANCE = 1_000_000_000_000L;
+
+    @Param({"1000", "100000"})
+    int accountCount;
+
+    @Param({"0", "16"})
+    int hotAccounts;
+
+    private Bank bank;
+    private String[] numbers;
+    private BankAccount[] accounts;
+    private Loan[] loans;
+    private int range;
+
+    @Setup
+    public void setUp() {
+        bank = new Bank();
+        bank.setPinIterations(1);
+        numbers = new String[accountCount];
+        accounts = new BankAccount[accountCount];
+        loans = new Loan[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            numbers[i] = "ACC" + i;
+            bank.createAccount(numbers[i], "Holder " + i, "Checking", 1234);
+            accounts[i] = bank.findAccount(numbers[i]);
+            accounts[i].applyDeposit(OPENING_BALANCE);
+            bank.applyForLoan("LOAN" + i, numbers[i], OPENING_BALANCE, 6.5);
+            loans[i] = bank.findLoan("LOAN" + i);
+        }
+        range = hotAccounts == 0 ? accountCount : Math.min(hotAccounts, accountCount);
+    }
+
+    private int pick() {
+        return ThreadLocalRandom.current().nextInt(range);
+    }
+
+    @Benchmark
+    public BankAccount findAccount() {
+        return bank.findAccount(numbers[pick()]);
+    }
+
+    @Benchmark
+    public boolean deposit() {
+        return accounts[pick()].applyDeposit(100);
+    }
+
+    @Benchmark
+    public PostingStatus withdraw() {
+        return accounts[pick()].applyWithdrawal(100);
+    }
+
+    @Benchmark
+    public PostingStatus transfer() {
+        int from = pick();
+        int to = ThreadLocalRandom.current().nextInt(accountCount);
+        return from == to ? PostingStatus.SAME_ACCOUNT : TransferEngine.transfer(accounts[from], accounts[to], 100);
+    }
+
+    @Benchmark
+    public PostingStatus loanPayment() {
+        return loans[pick()].makePayment(1);
+    }
+}
\ No newline at end of file
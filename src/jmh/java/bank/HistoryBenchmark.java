@@ -0,0 +1,47 @@
+package bank;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Appending to a transaction history, the step every credit and debit ends
+// with. BankAccount keeps that step private, so this drives the columns
+// directly. Each thread has its own history, as each account has a single
+// writer, and starts a fresh one once it holds MAX_ENTRIES so a long run
+// does not run out of heap; growing the columns is part of what is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int MAX_ENTRIES = 1 << 20;
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private TransactionHistory history;
+    private long sequence;
+
+    @Setup
+    public void setUp() {
+        history = new TransactionHistory();
+    }
+
+    @Benchmark
+    public TransactionHistory append() {
+        if (history.size() == MAX_ENTRIES) {
+            history = new TransactionHistory();
+        }
+        long next = sequence++;
+        history.append(TYPES[(int) (next % TYPES.length)], 100, next, next);
+        return history;
+    }
+}
\ No newline at end of file